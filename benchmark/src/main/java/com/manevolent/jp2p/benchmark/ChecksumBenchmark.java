@@ -0,0 +1,104 @@
+package com.manevolent.jp2p.benchmark;
+
+import com.manevolent.jp2p.RFC1071;
+import com.manevolent.jp2p.datagram.reliability.ChecksumType;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the checksums available to ReliabilitySocket, against the original RFC 1071 loop
+ * summing two bytes per step with a carry check per word.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+    @Param({"64", "1024", "8192"})
+    public int size;
+
+    private byte[] array;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setup() {
+        array = new byte[size];
+        new Random(size).nextBytes(array);
+
+        heap = ByteBuffer.wrap(array);
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(array);
+        direct.flip();
+    }
+
+    @Benchmark
+    public long bytewise() {
+        return calculateBytewise(array);
+    }
+
+    @Benchmark
+    public long rfc1071Array() {
+        return RFC1071.calculateChecksum(array);
+    }
+
+    @Benchmark
+    public long rfc1071Heap() {
+        return RFC1071.calculateChecksum(heap);
+    }
+
+    @Benchmark
+    public long rfc1071Direct() {
+        return RFC1071.calculateChecksum(direct);
+    }
+
+    @Benchmark
+    public long crc32() {
+        return ChecksumType.CRC_32.calculate(array);
+    }
+
+    @Benchmark
+    public long crc32c() {
+        return ChecksumType.CRC_32C.isAvailable() ? ChecksumType.CRC_32C.calculate(array) : 0L;
+    }
+
+    /**
+     * The original RFC1071.calculateChecksum(byte[]).
+     */
+    private static long calculateBytewise(byte[] buf) {
+        int length = buf.length;
+        int i = 0;
+
+        long sum = 0;
+        long data;
+
+        while (length > 1) {
+            data = (((buf[i] << 8) & 0xFF00) | ((buf[i + 1]) & 0xFF));
+            sum += data;
+            if ((sum & 0xFFFF0000) > 0) {
+                sum = sum & 0xFFFF;
+                sum += 1;
+            }
+
+            i += 2;
+            length -= 2;
+        }
+
+        if (length > 0) {
+            sum += (buf[i] << 8 & 0xFF00);
+            if ((sum & 0xFFFF0000) > 0) {
+                sum = sum & 0xFFFF;
+                sum += 1;
+            }
+        }
+
+        sum = ~sum;
+        sum = sum & 0xFFFF;
+        return sum;
+    }
+}
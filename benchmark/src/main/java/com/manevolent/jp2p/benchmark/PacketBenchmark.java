@@ -0,0 +1,91 @@
+package com.manevolent.jp2p.benchmark;
+
+import com.manevolent.jp2p.packet.BoundPacket;
+import com.manevolent.jp2p.packet.IdentifiedPacket;
+import com.manevolent.jp2p.packet.PacketFactory;
+import com.manevolent.jp2p.packet.io.Serializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures packet serialization: writing and reading a BoundPacket carrying a few properties,
+ * and creating packets by identifier through a PacketFactory. Run with -prof gc to see what
+ * every operation allocates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark {
+    private Serializer serializer;
+    private BoundPacket packet;
+
+    private ByteArrayOutputStream written;
+    private DataOutputStream dataOutputStream;
+    private byte[] serialized;
+
+    private PacketFactory<IdentifiedPacket> factory;
+
+    @Setup
+    public void setup() throws IOException {
+        serializer = new Serializer();
+
+        packet = new BoundPacket(serializer);
+        packet.setProperty("name", "benchmark");
+        packet.setProperty("sequence", 123456789L);
+        packet.setProperty("port", 49152);
+        packet.setProperty("volume", 0.75D);
+        packet.setProperty("reliable", true);
+
+        written = new ByteArrayOutputStream(256);
+        dataOutputStream = new DataOutputStream(written);
+        packet.write(dataOutputStream);
+        serialized = written.toByteArray();
+
+        factory = new PacketFactory<IdentifiedPacket>();
+        factory.register(EmptyPacket.ID, EmptyPacket.class);
+    }
+
+    @Benchmark
+    public int boundWrite() throws IOException {
+        written.reset();
+        packet.write(dataOutputStream);
+        return written.size();
+    }
+
+    @Benchmark
+    public BoundPacket boundRead() throws IOException {
+        BoundPacket read = new BoundPacket(serializer);
+        read.read(new DataInputStream(new ByteArrayInputStream(serialized)));
+        return read;
+    }
+
+    @Benchmark
+    public IdentifiedPacket createFromId() throws InstantiationException, IllegalAccessException {
+        return factory.createFromId(EmptyPacket.ID);
+    }
+
+    public static class EmptyPacket extends IdentifiedPacket {
+        private static final byte ID = 0x1;
+
+        public EmptyPacket() {
+            super(ID);
+        }
+
+        @Override
+        public void read(DataInputStream dataInputStream) {
+        }
+
+        @Override
+        public void write(DataOutputStream dataOutputStream) {
+        }
+    }
+}
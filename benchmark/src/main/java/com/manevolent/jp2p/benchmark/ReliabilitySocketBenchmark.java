@@ -0,0 +1,128 @@
+package com.manevolent.jp2p.benchmark;
+
+import com.manevolent.jp2p.datagram.DatagramSocket;
+import com.manevolent.jp2p.datagram.reliability.ReliabilityScheduler;
+import com.manevolent.jp2p.datagram.reliability.ReliabilitySocket;
+import com.manevolent.jp2p.extensible.socket.EmulatedDatagramSocket;
+import com.manevolent.jp2p.extensible.socket.NioDatagramSocket;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stream throughput of a ReliabilitySocket connection, one operation being a
+ * chunk written and flushed while a reader thread drains the other end. Flow control keeps
+ * the writer at most a receive window ahead of the reader, so the write rate is the transfer
+ * rate. Links:
+ *
+ * - loopback: UDP over the loopback interface.
+ * - emulated: EmulatedDatagramSocket pair with 1 ms of latency each way.
+ * - lossy: the same, losing 1% of datagrams in both directions once connected.
+ *
+ * Every link gets a fork of its own; connections are closed at the end of a trial. Run with
+ * -prof gc to see what a transfer allocates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReliabilitySocketBenchmark {
+    private static final int CHUNK = 16 * 1024;
+
+    @Param({"loopback", "emulated", "lossy"})
+    public String link;
+
+    private ReliabilityScheduler scheduler;
+    private ReliabilitySocket sender, receiver;
+    private OutputStream outputStream;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        DatagramSocket a, b;
+        EmulatedDatagramSocket[] pair = null;
+        if (link.equals("loopback")) {
+            DatagramChannel channelA = DatagramChannel.open(), channelB = DatagramChannel.open();
+            channelA.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channelB.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channelA.connect(channelB.getLocalAddress());
+            channelB.connect(channelA.getLocalAddress());
+
+            a = new NioDatagramSocket(channelA, 2048);
+            b = new NioDatagramSocket(channelB, 2048);
+        } else {
+            pair = EmulatedDatagramSocket.createPair(1L);
+            for (EmulatedDatagramSocket socket : pair)
+                socket.setLatency(1, TimeUnit.MILLISECONDS);
+
+            a = pair[0];
+            b = pair[1];
+        }
+
+        scheduler = new ReliabilityScheduler();
+        sender = new ReliabilitySocket(a, null);
+        receiver = new ReliabilitySocket(b, null);
+        for (ReliabilitySocket socket : new ReliabilitySocket[] { sender, receiver }) {
+            scheduler.register(socket);
+            start(socket, "Receive");
+        }
+
+        sender.initialize();
+        while (receiver.getMode() != ReliabilitySocket.Mode.CONNECTED ||
+                sender.getMode() != ReliabilitySocket.Mode.CONNECTED) Thread.sleep(1);
+
+        //Connection requests are not retransmitted, so loss only starts once connected.
+        if (link.equals("lossy"))
+            for (EmulatedDatagramSocket socket : pair)
+                socket.setLoss(0.01D);
+
+        final InputStream inputStream = receiver.getInputStream();
+        start(new Runnable() {
+            @Override
+            public void run() {
+                byte[] read = new byte[CHUNK];
+                try {
+                    while (inputStream.read(read, 0, read.length) >= 0);
+                } catch (IOException e) {
+                    //Fails the writer rather than leaving it blocked on a window nobody opens.
+                    sender.abort(e);
+                }
+            }
+        }, "Read");
+
+        outputStream = sender.getOutputStream();
+        chunk = new byte[CHUNK];
+        new Random(0L).nextBytes(chunk);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try {
+            sender.close();
+            receiver.close();
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    private static void start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Benchmark
+    public void transfer() throws IOException {
+        outputStream.write(chunk, 0, chunk.length);
+        outputStream.flush();
+    }
+}
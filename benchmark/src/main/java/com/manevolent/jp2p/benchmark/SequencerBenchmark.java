@@ -0,0 +1,63 @@
+package com.manevolent.jp2p.benchmark;
+
+import com.manevolent.jp2p.datagram.reliability.SequenceBuffer;
+import com.manevolent.jp2p.datagram.reliability.Sequencer;
+import com.manevolent.jp2p.datagram.reliability.SingleProducerSequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the synchronized Sequencer against the lock-free SingleProducerSequencer.
+ *
+ * The "inline" group puts and consumes on a single thread. The "pipeline" group runs one
+ * producer and one consumer on a shared sequencer (2 threads); running it with -t 4 runs two
+ * independent producer/consumer pairs (4 threads).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class SequencerBenchmark {
+    private static final Object ELEMENT = new Object();
+
+    @Param({"synchronized", "spsc"})
+    public String implementation;
+
+    @Param({"1024"})
+    public int length;
+
+    private SequenceBuffer<Object> sequencer;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        if (implementation.equals("spsc"))
+            sequencer = new SingleProducerSequencer<Object>(length);
+        else
+            sequencer = new Sequencer<Object>(length);
+    }
+
+    @Benchmark
+    @Group("inline")
+    @GroupThreads(1)
+    public Object putNext() {
+        sequencer.put(ELEMENT);
+        return sequencer.next();
+    }
+
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(1)
+    public long produce() {
+        return sequencer.available() > 0 ? sequencer.put(ELEMENT) : -1L;
+    }
+
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(1)
+    public Object consume() {
+        return sequencer.ready() ? sequencer.next() : null;
+    }
+}
@@ -0,0 +1,65 @@
+package com.manevolent.jp2p.benchmark;
+
+import com.manevolent.jp2p.extensible.stream.ByteBufferInputStream;
+import com.manevolent.jp2p.extensible.stream.ByteBufferOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the byte streams between ReliabilitySocket and the application: a push into the
+ * receive stream and the read draining it, and a write into the send stream and the flush
+ * handing it to the socket. Run with -prof gc to see what every operation allocates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamBenchmark {
+    @Param({"64", "1400", "8192"})
+    public int size;
+
+    private byte[] data;
+    private byte[] read;
+
+    private ByteBufferInputStream inputStream;
+    private ByteBufferOutputStream outputStream;
+    private long flushed;
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        read = new byte[size];
+
+        inputStream = new ByteBufferInputStream(64 * 1024);
+        outputStream = new ByteBufferOutputStream(new ByteBufferOutputStream.GatheringFlushCallback() {
+            @Override
+            public void flush(ByteBuffer[] buffers) {
+                for (ByteBuffer buffer : buffers) {
+                    flushed += buffer.remaining();
+                    buffer.position(buffer.limit());
+                }
+            }
+        });
+    }
+
+    @Benchmark
+    public byte[] pushRead() throws IOException {
+        inputStream.push(data);
+        inputStream.read(read, 0, size);
+        return read;
+    }
+
+    @Benchmark
+    public long writeFlush() throws IOException {
+        outputStream.write(data, 0, size);
+        outputStream.flush();
+        return flushed;
+    }
+}
@@ -1,42 +1,75 @@
 package com.manevolent.jp2p;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public final class RFC1071 {
     public static final long calculateChecksum(byte[] buf) {
-        int length = buf.length;
-        int i = 0;
+        return calculateChecksum(buf, 0, buf.length);
+    }
+
+    public static final long calculateChecksum(byte[] buf, int offset, int length) {
+        //Any byte order gives the same checksum, so read words in the fastest one.
+        return calculateChecksum(ByteBuffer.wrap(buf, offset, length).order(ByteOrder.nativeOrder()));
+    }
+
+    /**
+     * Calculates the checksum of the bytes between a buffer's position and limit, without
+     * moving its position. Works on heap and direct buffers alike.
+     * @param buffer Buffer to checksum.
+     * @return 16-bit checksum.
+     */
+    public static final long calculateChecksum(ByteBuffer buffer) {
+        int i = buffer.position();
+        int limit = buffer.limit();
 
         long sum = 0;
         long data;
 
-        // Handle all pairs
-        while (length > 1) {
-            // Corrected to include @Andy's edits and various comments on Stack Overflow
-            data = (((buf[i] << 8) & 0xFF00) | ((buf[i + 1]) & 0xFF));
-            sum += data;
-            // 1's complement carry bit correction in 16-bits (detecting sign extension)
-            if ((sum & 0xFFFF0000) > 0) {
-                sum = sum & 0xFFFF;
-                sum += 1;
-            }
+        // Handle 8 bytes at a time as two 32-bit halves; the carries pile up in the upper
+        // bits of the sums and are only folded back in once at the end. Each step adds less
+        // than 2^33, so the sums cannot overflow for any buffer Java can address. Two sums
+        // are kept so consecutive steps do not wait on each other.
+        long sum2 = 0;
+        while (limit - i >= 16) {
+            data = buffer.getLong(i);
+            sum += (data >>> 32) + (data & 0xFFFFFFFFL);
+            data = buffer.getLong(i + 8);
+            sum2 += (data >>> 32) + (data & 0xFFFFFFFFL);
+            i += 16;
+        }
+        sum += sum2;
 
+        if (limit - i >= 8) {
+            data = buffer.getLong(i);
+            sum += (data >>> 32) + (data & 0xFFFFFFFFL);
+            i += 8;
+        }
+
+        // Handle remaining pairs
+        while (limit - i >= 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
             i += 2;
-            length -= 2;
         }
 
+        // The sum is byte order independent, but words were read in the buffer's byte order.
+        boolean swapped = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+
         // Handle remaining byte in odd length buffers
-        if (length > 0) {
-            // Corrected to include @Andy's edits and various comments on Stack Overflow
-            sum += (buf[i] << 8 & 0xFF00);
-            // 1's complement carry bit correction in 16-bits (detecting sign extension)
-            if ((sum & 0xFFFF0000) > 0) {
-                sum = sum & 0xFFFF;
-                sum += 1;
-            }
+        if (i < limit) {
+            data = buffer.get(i) & 0xFF;
+            sum += swapped ? data : data << 8;
         }
 
+        // 1's complement carry bit correction in 16-bits
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+
+        if (swapped) sum = ((sum & 0xFF) << 8) | (sum >>> 8);
+
         // Final 1's complement value correction to 16-bits
         sum = ~sum;
         sum = sum & 0xFFFF;
         return sum;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,345 @@
+package com.manevolent.jp2p.buffer;
+
+import com.manevolent.jp2p.datagram.Datagram;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte buffers shared by the layers of the stack, so long-running nodes recycle their
+ * packet and stream buffers instead of leaving them to the collector.
+ *
+ * Buffers come in size classes, powers of two from MIN_SIZE to MAX_SIZE; requests are rounded
+ * up to their class, and larger requests are allocated outside the pool. Every thread keeps a
+ * small cache of idle buffers per class in front of the shared idle queues, so a thread that
+ * releases and acquires buffers does not contend with the others. Direct pools carve their
+ * buffers out of larger off-heap slabs.
+ *
+ * A released buffer must not be used anymore, and must not be released twice. In debug mode
+ * (see setDebug(), or the jp2p.buffer.debug system property for the shared pools), the pool
+ * catches double releases and reports buffers collected without having been released, along
+ * with where they were acquired.
+ */
+public class BufferPool implements Datagram.ReleaseCallback {
+    /**
+     * Smallest and largest size classes, in bytes.
+     */
+    public static final int MIN_SIZE = 64;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    /**
+     * Idle buffers kept per class by every thread's cache.
+     */
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * Buffers carved out of a slab at most, and largest slab, in bytes.
+     */
+    private static final int SLAB_BUFFERS = 64;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * Default amount of idle memory kept per class by the shared queues, in bytes.
+     */
+    private static final long IDLE_LIMIT = 4L * 1024 * 1024;
+
+    private static final boolean DEBUG = Boolean.getBoolean("jp2p.buffer.debug");
+
+    private static final BufferPool HEAP = new BufferPool(false);
+    private static final BufferPool DIRECT = new BufferPool(true);
+
+    private final boolean direct;
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+
+    private final ThreadLocal<ByteBuffer[][]> caches = new ThreadLocal<ByteBuffer[][]>() {
+        @Override
+        protected ByteBuffer[][] initialValue() {
+            return new ByteBuffer[CLASSES][CACHE_SIZE];
+        }
+    };
+
+    private final ThreadLocal<int[]> cached = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[CLASSES];
+        }
+    };
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    private volatile boolean debug = DEBUG;
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    private final Map<Integer, List<Leak>> tracked = new HashMap<Integer, List<Leak>>();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * @param direct true to pool direct buffers, carved out of off-heap slabs.
+     * @param idleLimit Idle memory kept per class by the shared queues, in bytes.
+     */
+    public BufferPool(boolean direct, long idleLimit) {
+        this.direct = direct;
+
+        for (int i = 0; i < CLASSES; i ++) {
+            int size = MIN_SIZE << i;
+            classes[i] = new SizeClass(size, (int) Math.max(1, Math.min(Integer.MAX_VALUE, idleLimit / size)));
+        }
+    }
+
+    public BufferPool(boolean direct) {
+        this(direct, IDLE_LIMIT);
+    }
+
+    /**
+     * Gets the pool of heap buffers shared by the stack.
+     * @return Shared heap pool.
+     */
+    public static BufferPool getDefault() {
+        return HEAP;
+    }
+
+    /**
+     * Gets the pool of direct buffers shared by the stack, e.g. for channel I/O.
+     * @return Shared direct pool.
+     */
+    public static BufferPool getDirect() {
+        return DIRECT;
+    }
+
+    /**
+     * Acquires a buffer, which should be released back once it is not used anymore.
+     * @param size Amount of bytes needed.
+     * @return Buffer with a capacity of at least size bytes, positioned at 0 and limited to size.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) throw new IllegalArgumentException("Invalid size: " + size);
+
+        if (debug) reportLeaks();
+
+        ByteBuffer buffer;
+        int index = index(size);
+        if (index < 0) { //Too large to be pooled.
+            allocations.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+
+        int[] count = cached.get();
+        if (count[index] > 0) {
+            ByteBuffer[] cache = caches.get()[index];
+            buffer = cache[-- count[index]];
+            cache[count[index]] = null;
+        } else
+            buffer = classes[index].poll();
+
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            buffer = classes[index].allocate();
+        }
+
+        if (debug) track(buffer);
+
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Releases a buffer back to the pool. Buffers the pool cannot hold, e.g. buffers too large
+     * to be pooled, are left to the collector.
+     * @param buffer Buffer to release, not to be used anymore.
+     */
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+
+        int size = buffer.capacity();
+        int index = index(size);
+        if (index < 0 || (MIN_SIZE << index) != size || buffer.isDirect() != direct || buffer.isReadOnly())
+            return;
+
+        if (debug) {
+            untrack(buffer);
+            reportLeaks();
+        }
+
+        buffer.clear();
+
+        int[] count = cached.get();
+        if (count[index] < CACHE_SIZE) {
+            caches.get()[index][count[index] ++] = buffer;
+            return;
+        }
+
+        classes[index].offer(buffer);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Sets whether the pool tracks its buffers to catch double releases and leaks, at the cost
+     * of recording a stack trace on every acquire. Set before acquiring any buffer, as buffers
+     * acquired beforehand are not tracked.
+     * @param debug true to track buffers.
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * Gets the amount of buffers the pool had to allocate, as opposed to reuse.
+     * @return Allocations.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Gets the amount of leaked buffers reported in debug mode.
+     * @return Leaks.
+     */
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * Finds the size class of a request.
+     * @param size Requested size.
+     * @return Index of the smallest class holding size bytes, or -1 if too large to be pooled.
+     */
+    private static int index(int size) {
+        if (size <= MIN_SIZE) return 0;
+        if (size > MAX_SIZE) return -1;
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    //
+    // Leak detection, in debug mode only.
+    //
+
+    private void track(ByteBuffer buffer) {
+        Leak leak = new Leak(buffer, collected);
+        synchronized (tracked) {
+            List<Leak> list = tracked.get(leak.hash);
+            if (list == null) tracked.put(leak.hash, list = new ArrayList<Leak>(1));
+            list.add(leak);
+        }
+    }
+
+    private void untrack(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (tracked) {
+            List<Leak> list = tracked.get(hash);
+            if (list != null)
+                for (int i = 0; i < list.size(); i ++) {
+                    Leak leak = list.get(i);
+                    if (leak.get() != buffer) continue;
+
+                    leak.clear();
+                    list.remove(i);
+                    if (list.isEmpty()) tracked.remove(hash);
+                    return;
+                }
+        }
+
+        throw new IllegalStateException("Buffer released twice, or not acquired from this pool");
+    }
+
+    /**
+     * Reports the buffers collected while still acquired.
+     */
+    private void reportLeaks() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            Leak leak = (Leak) reference;
+
+            boolean leaked;
+            synchronized (tracked) {
+                List<Leak> list = tracked.get(leak.hash);
+                leaked = list != null && list.remove(leak);
+                if (leaked && list.isEmpty()) tracked.remove(leak.hash);
+            }
+
+            if (leaked) {
+                leaks.incrementAndGet();
+                leak.acquired.printStackTrace();
+            }
+        }
+    }
+
+    private static class Leak extends WeakReference<ByteBuffer> {
+        private final int hash;
+        private final Throwable acquired;
+
+        private Leak(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+
+            this.hash = System.identityHashCode(buffer);
+            this.acquired = new Throwable("Buffer of " + buffer.capacity() +
+                    " bytes collected without being released; acquired");
+        }
+    }
+
+    /**
+     * Idle buffers of one size, shared by every thread, and the slab they are carved out of.
+     */
+    private class SizeClass {
+        private final int size;
+        private final int limit;
+
+        private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private ByteBuffer slab;
+
+        private SizeClass(int size, int limit) {
+            this.size = size;
+            this.limit = limit;
+        }
+
+        private ByteBuffer poll() {
+            ByteBuffer buffer = idle.poll();
+            if (buffer != null) count.decrementAndGet();
+            return buffer;
+        }
+
+        private void offer(ByteBuffer buffer) {
+            if (count.incrementAndGet() > limit) {
+                count.decrementAndGet();
+                return;
+            }
+
+            idle.offer(buffer);
+        }
+
+        private ByteBuffer allocate() {
+            if (!direct) return ByteBuffer.allocate(size);
+
+            synchronized (this) {
+                if (slab == null || slab.remaining() < size)
+                    slab = ByteBuffer.allocateDirect(size * Math.max(1, Math.min(SLAB_BUFFERS, SLAB_SIZE / size)));
+
+                slab.limit(slab.position() + size);
+                ByteBuffer buffer = slab.slice();
+                slab.position(slab.limit()).limit(slab.capacity());
+                return buffer;
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.manevolent.jp2p.client.ssl;
 
+import com.manevolent.jp2p.buffer.BufferPool;
 import com.manevolent.jp2p.client.NetworkClient;
 import com.manevolent.jp2p.endpoint.Endpoint;
 import com.manevolent.jp2p.extensible.stream.ByteBufferInputStream;
@@ -12,10 +13,11 @@ import java.nio.ByteBuffer;
 
 public class SSLNetworkClient
         extends NetworkClient
-        implements ByteBufferOutputStream.ByteBufferFlushCallback {
+        implements ByteBufferOutputStream.GatheringFlushCallback {
     private NetworkClient base;
 
     private final SSLEngine engine;
+    private final BufferPool pool = BufferPool.getDefault();
 
     private SSLInputStream inputStream;
     private SSLOutputStream outputStream;
@@ -28,8 +30,8 @@ public class SSLNetworkClient
 
         this.engine = engine;
 
-        this.receiveBuffer = new ByteBufferInputStream(engine.getSession().getApplicationBufferSize());
-        this.sendBuffer = new ByteBufferInputStream(engine.getSession().getApplicationBufferSize());
+        this.receiveBuffer = new ByteBufferInputStream(pool, engine.getSession().getApplicationBufferSize());
+        this.sendBuffer = new ByteBufferInputStream(pool, engine.getSession().getApplicationBufferSize());
 
         this.inputStream = new SSLInputStream();
         this.outputStream = new SSLOutputStream();
@@ -68,8 +70,17 @@ public class SSLNetworkClient
 
     @Override
     public void close() throws IOException {
-        engine.closeOutbound();
-        base.close();
+        try {
+            outputStream.close(); //Flushes what is left.
+        } finally {
+            engine.closeOutbound();
+            base.close();
+
+            //Gives the stream buffers back to the pool.
+            inputStream.close();
+            receiveBuffer.close();
+            sendBuffer.close();
+        }
     }
 
     private void handleStreams(SSLEngineResult.HandshakeStatus handshakeStatus) throws IOException {
@@ -84,22 +95,25 @@ public class SSLNetworkClient
 
                 switch (handshakeStatus) {
                     case NEED_WRAP:
-                        byte[] send = sendBuffer.flushToArray();
-                        ByteBuffer wrapRequest = ByteBuffer.wrap(send);
-                        ByteBuffer wrapResponse = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
-
-                        r = engine.wrap(wrapRequest, wrapResponse);
-                        byte[] output = wrapResponse.array();
-
-                        if (r.bytesProduced() > 0) {
-                            base.getOutputStream().write(output, 0, r.bytesProduced());
-                            base.getOutputStream().flush();
-                        }
-
-                        if (r.bytesConsumed() < send.length) {
-                            byte[] leftover = new byte[send.length - r.bytesConsumed()];
-                            System.arraycopy(send, r.bytesConsumed(), leftover, 0, leftover.length);
-                            sendBuffer.push(leftover);
+                        ByteBuffer wrapRequest = drain(sendBuffer);
+                        ByteBuffer wrapResponse = pool.acquire(engine.getSession().getPacketBufferSize());
+                        try {
+                            r = engine.wrap(wrapRequest, wrapResponse);
+
+                            if (r.bytesProduced() > 0) {
+                                base.getOutputStream().write(
+                                        wrapResponse.array(),
+                                        wrapResponse.arrayOffset(),
+                                        r.bytesProduced()
+                                );
+                                base.getOutputStream().flush();
+                            }
+
+                            //Anything not consumed goes back to the (drained) send buffer.
+                            sendBuffer.push(wrapRequest);
+                        } finally {
+                            pool.release(wrapRequest);
+                            pool.release(wrapResponse);
                         }
 
                         break;
@@ -108,31 +122,31 @@ public class SSLNetworkClient
                         while (receiveBuffer.available() <= 0 &&
                                 base.getInputStream().available() <= 0);
 
-                        int available = base.getInputStream().available();
-                        byte[] target = new byte[available];
+                        int available = Math.min(base.getInputStream().available(), receiveBuffer.remaining());
                         if (available > 0) {
-                            int n = base.getInputStream().read(target);
-                            receiveBuffer.push(target);
+                            ByteBuffer target = pool.acquire(available);
+                            try {
+                                int n = base.getInputStream().read(target.array(), target.arrayOffset(), available);
+                                if (n > 0) receiveBuffer.push(target.array(), target.arrayOffset(), n);
+                            } finally {
+                                pool.release(target);
+                            }
                         }
 
-                        byte[] unwrap = receiveBuffer.flushToArray();
-                        ByteBuffer unwrapRequest = ByteBuffer.wrap(unwrap);
-                        ByteBuffer unwrapResponse = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
-
-                        r = engine.unwrap(unwrapRequest, unwrapResponse);
-                        int unwrapLen = r.bytesProduced(); // User-space incoming data length
+                        ByteBuffer unwrapRequest = drain(receiveBuffer);
+                        ByteBuffer unwrapResponse = pool.acquire(engine.getSession().getApplicationBufferSize());
+                        try {
+                            r = engine.unwrap(unwrapRequest, unwrapResponse);
 
-                        if (unwrapLen > 0) {
-                            byte[] input = new byte[unwrapLen];
-                            byte[] arr = unwrapResponse.array();
-                            System.arraycopy(arr, 0, input, 0, input.length);
-                            inputStream.push(input);
-                        }
+                            // User-space incoming data
+                            unwrapResponse.flip();
+                            inputStream.push(unwrapResponse);
 
-                        if (r.bytesConsumed() < unwrap.length) {
-                            byte[] leftover = new byte[unwrap.length - r.bytesConsumed()];
-                            System.arraycopy(unwrap, r.bytesConsumed(), leftover, 0, leftover.length);
-                            receiveBuffer.push(leftover);
+                            //Anything not consumed goes back to the (drained) receive buffer.
+                            receiveBuffer.push(unwrapRequest);
+                        } finally {
+                            pool.release(unwrapRequest);
+                            pool.release(unwrapResponse);
                         }
 
                         break;
@@ -160,16 +174,39 @@ public class SSLNetworkClient
         }
     }
 
+    /**
+     * Reads every byte available in a buffer stream, without blocking, into a pooled buffer.
+     * @param stream Stream to drain.
+     * @return Pooled buffer, flipped for reading, to be released once used.
+     * @throws IOException
+     */
+    private ByteBuffer drain(ByteBufferInputStream stream) throws IOException {
+        ByteBuffer buffer = pool.acquire(stream.available());
+        if (buffer.hasRemaining()) stream.read(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
     @Override
-    public void flush(byte[] bytes) throws IOException {
+    public void flush(ByteBuffer[] buffers) throws IOException {
         while (!isValid()) handleStreams(null);
-        sendBuffer.push(bytes);
-        handleStreams(SSLEngineResult.HandshakeStatus.NEED_WRAP);
+
+        for (ByteBuffer buffer : buffers) {
+            int limit = buffer.limit();
+            while (buffer.hasRemaining()) {
+                //Push no more than the send buffer holds; pushing would block on ourselves.
+                buffer.limit(buffer.position() + Math.min(buffer.remaining(), sendBuffer.remaining()));
+                sendBuffer.push(buffer);
+                buffer.limit(limit);
+
+                handleStreams(SSLEngineResult.HandshakeStatus.NEED_WRAP);
+            }
+        }
     }
 
     class SSLInputStream extends ByteBufferInputStream {
         SSLInputStream() {
-            super(engine.getSession().getApplicationBufferSize());
+            super(pool, engine.getSession().getApplicationBufferSize());
         }
 
         @Override
@@ -188,20 +225,13 @@ public class SSLNetworkClient
             while (available() <= 0)
                 handleStreams(SSLEngineResult.HandshakeStatus.NEED_UNWRAP);
 
-            int x = 0;
-            len = Math.min(len, available());
-            for (int i = off; i < len; i ++) {
-                bytes[i] = (byte) read();
-                x++;
-            }
-
-            return x == 0 ? -1 : x;
+            return super.read(bytes, off, Math.min(len, available()));
         }
     }
 
     class SSLOutputStream extends ByteBufferOutputStream {
         public SSLOutputStream() {
-            super(engine.getSession().getPacketBufferSize(), SSLNetworkClient.this);
+            super(pool, engine.getSession().getPacketBufferSize(), SSLNetworkClient.this);
         }
     }
 }
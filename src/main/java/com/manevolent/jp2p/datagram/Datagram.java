@@ -2,9 +2,13 @@ package com.manevolent.jp2p.datagram;
 
 import com.manevolent.jp2p.endpoint.SocketEndpoint;
 
+import java.nio.ByteBuffer;
+
 public final class Datagram {
     private SocketEndpoint endpoint;
     private byte[] data;
+    private ByteBuffer buffer;
+    private ReleaseCallback releaseCallback;
 
     public Datagram(SocketEndpoint endpoint, byte[] data) {
         this.endpoint = endpoint;
@@ -15,6 +19,19 @@ public final class Datagram {
         this(null, data);
     }
 
+    /**
+     * Creates a datagram backed by a buffer, usually borrowed from a pool by the socket that
+     * received it.
+     * @param endpoint Source or destination of the datagram.
+     * @param buffer Buffer holding the datagram between its position and limit.
+     * @param releaseCallback Callback given the buffer back on release(), or null.
+     */
+    public Datagram(SocketEndpoint endpoint, ByteBuffer buffer, ReleaseCallback releaseCallback) {
+        this.endpoint = endpoint;
+        this.buffer = buffer;
+        this.releaseCallback = releaseCallback;
+    }
+
     /**
      * Finds if the datagram has a destination.
      * @return true if a destination has been provided, false otherwise.
@@ -24,7 +41,8 @@ public final class Datagram {
     }
 
     /**
-     * Gets the endpoint set for the datagram.
+     * Gets the endpoint set for the datagram. For received datagrams this is the source
+     * of the datagram, if the socket provides it.
      * @return SocketEndpoint instance.
      */
     public SocketEndpoint getEndpoint() {
@@ -32,10 +50,48 @@ public final class Datagram {
     }
 
     /**
-     * Gets the datagram data.
+     * Gets the length of the datagram.
+     * @return Datagram length, in bytes.
+     */
+    public int getLength() {
+        return buffer != null ? buffer.remaining() : data.length;
+    }
+
+    /**
+     * Gets the datagram data. Buffer-backed datagrams are copied into an array of the
+     * datagram's length on the first call; prefer getBuffer() to avoid the copy.
      * @return Byte array containing the data this datagram represents.
      */
     public byte[] getData() {
+        if (data == null) {
+            data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+        }
+
         return data;
     }
+
+    /**
+     * Gets a view of the datagram data, positioned at the start of the datagram and limited
+     * to its length. The view is only valid until the datagram is released.
+     * @return ByteBuffer view of the datagram.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer != null ? buffer.duplicate() : ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Releases the buffer backing the datagram back to its owner. The datagram's buffer
+     * must not be used afterwards. Has no effect on array-backed datagrams.
+     */
+    public void release() {
+        ReleaseCallback releaseCallback = this.releaseCallback;
+        this.releaseCallback = null;
+
+        if (releaseCallback != null) releaseCallback.release(buffer);
+    }
+
+    public interface ReleaseCallback {
+        public void release(ByteBuffer buffer);
+    }
 }
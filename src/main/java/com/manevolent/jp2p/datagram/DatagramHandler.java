@@ -0,0 +1,18 @@
+package com.manevolent.jp2p.datagram;
+
+import java.io.IOException;
+
+/**
+ * Handles datagrams received in a batch by DatagramSocket.receive(DatagramHandler, int).
+ */
+public interface DatagramHandler {
+
+    /**
+     * Handles a received datagram. The datagram, and its buffer, are only valid until this
+     * method returns or the datagram is released.
+     * @param datagram Datagram to handle; must be released once read.
+     * @throws IOException
+     */
+    void handle(Datagram datagram) throws IOException;
+
+}
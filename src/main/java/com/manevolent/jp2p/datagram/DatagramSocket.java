@@ -8,4 +8,21 @@ public abstract class DatagramSocket implements DatagramSender, DatagramReceiver
 
     public abstract void send(Datagram bytes) throws IOException;
 
+    /**
+     * Receives a batch of datagrams: waits for a datagram like receive(), then hands it to a
+     * handler along with every datagram already queued behind it, up to a maximum, without
+     * waiting again. Sockets unable to tell if a datagram is queued hand out one per call.
+     * @param handler Handler to hand every datagram received to.
+     * @param max Largest amount of datagrams to receive.
+     * @return Amount of datagrams received, 0 if none was (e.g. for non-blocking sockets).
+     * @throws IOException
+     */
+    public int receive(DatagramHandler handler, int max) throws IOException {
+        Datagram datagram = receive();
+        if (datagram == null) return 0;
+
+        handler.handle(datagram);
+        return 1;
+    }
+
 }
@@ -0,0 +1,191 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import com.manevolent.jp2p.RFC1071;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Checksums a ReliabilitySocket can protect pushed data with. INTERNET is always used with
+ * legacy headers; the CRCs are offered at connect, and used with compact headers when both
+ * peers offer them.
+ */
+public enum ChecksumType {
+    /**
+     * The 16-bit RFC 1071 internet checksum.
+     */
+    INTERNET(2, (byte) 0) {
+        @Override
+        public long calculate(byte[] data, int offset, int length) {
+            return RFC1071.calculateChecksum(data, offset, length);
+        }
+
+        @Override
+        public long calculate(ByteBuffer buffer) {
+            return RFC1071.calculateChecksum(buffer);
+        }
+    },
+
+    /**
+     * CRC-32, as used by zip and Ethernet.
+     */
+    CRC_32(4, ReliabilitySocket.CAPABILITY_CRC32) {
+        @Override
+        protected Checksum create() {
+            return new CRC32();
+        }
+    },
+
+    /**
+     * CRC-32C (Castagnoli), computed with the CPU's CRC32 instruction where available. Only
+     * offered when the runtime provides java.util.zip.CRC32C (Java 9 and later).
+     */
+    CRC_32C(4, ReliabilitySocket.CAPABILITY_CRC32C) {
+        @Override
+        public boolean isAvailable() {
+            return Crc32c.CONSTRUCTOR != null;
+        }
+
+        @Override
+        protected Checksum create() {
+            try {
+                return Crc32c.CONSTRUCTOR.newInstance();
+            } catch (Exception e) {
+                throw new IllegalStateException("CRC32C unavailable", e);
+            }
+        }
+    };
+
+    /**
+     * Size of the chunks direct buffers are copied out in, into a buffer kept per thread.
+     */
+    private static final int CHUNK = 1024;
+    private static final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK];
+        }
+    };
+
+    private final int length;
+    private final byte capability;
+
+    private final ThreadLocal<Checksum> checksums = new ThreadLocal<Checksum>() {
+        @Override
+        protected Checksum initialValue() {
+            return create();
+        }
+    };
+
+    ChecksumType(int length, byte capability) {
+        this.length = length;
+        this.capability = capability;
+    }
+
+    /**
+     * Gets the amount of bytes the checksum takes in a compact header.
+     * @return Checksum length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the capability flag announcing support for the checksum at connect.
+     * @return Capability flag, or 0 if the checksum is always supported.
+     */
+    public byte getCapability() {
+        return capability;
+    }
+
+    /**
+     * Finds if the checksum can be computed by this runtime.
+     * @return true if the checksum is available, false otherwise.
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    public long calculate(byte[] data) {
+        return calculate(data, 0, data.length);
+    }
+
+    public long calculate(byte[] data, int offset, int length) {
+        Checksum checksum = checksums.get();
+        checksum.reset();
+        checksum.update(data, offset, length);
+        return checksum.getValue();
+    }
+
+    /**
+     * Calculates the checksum of the bytes between a buffer's position and limit, without
+     * moving its position.
+     * @param buffer Buffer to checksum.
+     * @return Checksum.
+     */
+    public long calculate(ByteBuffer buffer) {
+        if (buffer.hasArray())
+            return calculate(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+        Checksum checksum = checksums.get();
+        checksum.reset();
+
+        byte[] chunk = chunks.get();
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            checksum.update(chunk, 0, length);
+        }
+
+        return checksum.getValue();
+    }
+
+    /**
+     * Creates the Checksum computing this checksum, once per thread. Only used by the calculate()
+     * methods of this class; constants overriding them don't need to override this.
+     * @return Checksum instance, or null if the constant calculates the checksum on its own.
+     */
+    protected Checksum create() {
+        return null;
+    }
+
+    /**
+     * Gets the capability flags announcing this checksum and every weaker checksum.
+     * @return Capability flags.
+     */
+    byte getCapabilities() {
+        byte capabilities = 0;
+        for (ChecksumType type : values())
+            if (type.ordinal() <= ordinal() && type.isAvailable()) capabilities |= type.getCapability();
+
+        return capabilities;
+    }
+
+    /**
+     * Picks the strongest checksum announced by both peers.
+     * @param capabilities Capability flags announced by both peers.
+     * @return Strongest common checksum.
+     */
+    static ChecksumType negotiate(byte capabilities) {
+        ChecksumType[] types = values();
+        for (int i = types.length - 1; i > 0; i --)
+            if ((capabilities & types[i].getCapability()) != 0 && types[i].isAvailable()) return types[i];
+
+        return INTERNET;
+    }
+
+    private static final class Crc32c {
+        private static final Constructor<? extends Checksum> CONSTRUCTOR = find();
+
+        private static Constructor<? extends Checksum> find() {
+            try {
+                return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
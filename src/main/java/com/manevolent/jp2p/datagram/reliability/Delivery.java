@@ -0,0 +1,63 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+/**
+ * Delivery modes of messages sent with ReliabilitySocket.sendMessage(). Reliable messages
+ * share the retransmission and congestion state of the connection's byte stream; unreliable
+ * messages are sent once, outside of it.
+ */
+public enum Delivery {
+    /**
+     * Retransmitted until acknowledged, and delivered in the order sent relative to other
+     * reliable-ordered messages.
+     */
+    RELIABLE_ORDERED((byte) 0x10, true),
+
+    /**
+     * Retransmitted until acknowledged, and delivered as soon as it arrives, without waiting
+     * for anything sent before it.
+     */
+    RELIABLE_UNORDERED((byte) 0x20, true),
+
+    /**
+     * Sent once, and dropped on arrival if a newer unreliable-sequenced message has already
+     * been delivered.
+     */
+    UNRELIABLE_SEQUENCED((byte) 0x30, false),
+
+    /**
+     * Sent once, and delivered in whatever order it arrives.
+     */
+    UNRELIABLE((byte) 0x40, false);
+
+    private final byte code;
+    private final boolean reliable;
+
+    Delivery(byte code, boolean reliable) {
+        this.code = code;
+        this.reliable = reliable;
+    }
+
+    /**
+     * Gets the code identifying the delivery mode on the wire.
+     * @return Delivery code.
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    public boolean isReliable() {
+        return reliable;
+    }
+
+    /**
+     * Finds the delivery mode identified by a code.
+     * @param code Delivery code.
+     * @return Delivery mode, or null if the code is unknown.
+     */
+    public static Delivery fromCode(int code) {
+        for (Delivery delivery : values())
+            if (delivery.code == code) return delivery;
+
+        return null;
+    }
+}
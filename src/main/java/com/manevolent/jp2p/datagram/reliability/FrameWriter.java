@@ -0,0 +1,343 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import com.manevolent.jp2p.datagram.Datagram;
+import com.manevolent.jp2p.datagram.DatagramSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the packets a ReliabilitySocket sends into datagrams, with legacy or compact
+ * (VERSION_COMPACT) headers. Peers announcing CAPABILITY_FRAMES are sent a single
+ * PACKET_FRAMES datagram carrying every frame written until it is flushed; other peers are sent
+ * one datagram per frame. The datagram never grows past the largest single PUSH, so coalescing does not
+ * require larger receive buffers from the peer.
+ *
+ * Not thread-safe: the socket only writes frames while holding its frame lock.
+ */
+class FrameWriter {
+    /**
+     * Sizes of the header of every datagram, of the packet id and length heading every frame,
+     * and of the fields heading every PUSH body, for legacy and compact headers.
+     */
+    static final int DATAGRAM_HEADER = 9;
+    static final int COMPACT_DATAGRAM_HEADER = 5;
+    static final int FRAME_HEADER = 3;
+    static final int PUSH_HEADER = 21;
+    static final int COMPACT_PUSH_HEADER = 5; //Excluding the checksum.
+
+    private final DatagramSocket datagramSocket;
+    private final ReliabilityCounters counters;
+    private final long localPeerId;
+
+    /**
+     * Outgoing datagram under construction, the amount of frames it holds, and the position
+     * of the length of the frame being written.
+     */
+    private final ByteBuffer frames = ByteBuffer.allocate(DATAGRAM_HEADER + PUSH_HEADER + ReliabilityPacket.MTU);
+    private int frameCount = 0;
+    private int frameStart = 0;
+    private boolean framesCompact = false;
+    private boolean standalone = false;
+
+    /**
+     * Time (System.nanoTime()) by which the coalesced frames should be sent, set by the first
+     * frame of a datagram to the flush delay from then.
+     */
+    private long deadline = 0;
+
+    private volatile boolean coalescing = false;
+    private volatile long flushDelay = 0;
+
+    FrameWriter(DatagramSocket datagramSocket, ReliabilityCounters counters, long localPeerId) {
+        this.datagramSocket = datagramSocket;
+        this.counters = counters;
+        this.localPeerId = localPeerId;
+    }
+
+    /**
+     * Writes a PACKET_PUSH frame.
+     * @param compact true to write a compact body.
+     * @param checksumType Checksum of compact bodies; legacy bodies always use INTERNET.
+     * @param sequence Local sequence of the push.
+     * @param mode Push mode, including its delivery bits.
+     * @param data Push data.
+     * @param length Push length.
+     * @return Checksum of the push, as sent.
+     * @throws IOException
+     */
+    long writePush(boolean compact, ChecksumType checksumType,
+                   long sequence, byte mode, byte[] data, int length) throws IOException {
+        if (!compact) checksumType = ChecksumType.INTERNET;
+        long checksum = checksumType.calculate(data, 0, length);
+
+        ByteBuffer frame = beginFrame(ReliabilitySocket.PACKET_PUSH, length +
+                (compact ? COMPACT_PUSH_HEADER + checksumType.getLength() : PUSH_HEADER), compact, true);
+
+        frame.put(mode);
+        if (compact) {
+            frame.putInt((int) sequence);
+            if (checksumType.getLength() == 2) frame.putShort((short) checksum);
+            else frame.putInt((int) checksum);
+        } else {
+            frame.putLong(sequence);
+            frame.putLong(checksum);
+            frame.putInt(length);
+        }
+        frame.put(data, 0, length);
+
+        endFrame();
+        return checksum;
+    }
+
+    /**
+     * Writes a PACKET_PARITY frame holding the parity of a group.
+     * @param compact true to write a compact body.
+     * @param checksumType Checksum of compact bodies.
+     * @param parity Group to write the parity of.
+     * @throws IOException
+     */
+    void writeParity(boolean compact, ChecksumType checksumType, ParityGroup parity) throws IOException {
+        int span = parity.getSpan();
+        ByteBuffer frame = beginFrame(ReliabilitySocket.PACKET_PARITY,
+                (compact ? 8 + checksumType.getLength() : 20) + span, compact, true);
+
+        if (compact) frame.putInt((int) parity.getBase());
+        else frame.putLong(parity.getBase());
+        frame.put((byte) parity.getCount());
+        frame.put(parity.getDelivery());
+        frame.putShort((short) parity.getLength());
+        if (!compact) frame.putLong(parity.getChecksum());
+        else if (checksumType.getLength() == 2) frame.putShort((short) parity.getChecksum());
+        else frame.putInt((int) parity.getChecksum());
+        frame.put(parity.getData(), 0, span);
+
+        endFrame();
+    }
+
+    /**
+     * Writes a PACKET_ACK frame.
+     * @param compact true to write a compact body.
+     * @param sequence Remote sequence acknowledged.
+     * @param window Receive window to advertise, or -1 if the peer does not support it.
+     * @throws IOException
+     */
+    void writeAck(boolean compact, long sequence, int window) throws IOException {
+        ByteBuffer frame = beginFrame(ReliabilitySocket.PACKET_ACK,
+                (compact ? 4 : 8) + (window >= 0 ? 4 : 0), compact, true);
+        if (compact) frame.putInt((int) sequence);
+        else frame.putLong(sequence);
+        if (window >= 0) frame.putInt(window);
+        endFrame();
+    }
+
+    /**
+     * Writes a PACKET_SACK frame, flagging every remote sequence held past the cumulative one.
+     * @param compact true to write a compact body.
+     * @param cumulative Remote sequence below which everything has been received.
+     * @param window Receive window to advertise, or -1 if the peer does not support it.
+     * @param received Remote sequences held.
+     * @param highestReceived Highest remote sequence held.
+     * @throws IOException
+     */
+    void writeSack(boolean compact, long cumulative, int window,
+                   SequenceBuffer<?> received, long highestReceived) throws IOException {
+        int words = getSackWords(cumulative, highestReceived);
+
+        ByteBuffer frame = beginFrame(ReliabilitySocket.PACKET_SACK,
+                getSackLength(compact, window >= 0, words), compact, true);
+        if (compact) frame.putInt((int) cumulative);
+        else frame.putLong(cumulative);
+        if (window >= 0) frame.putInt(window);
+        frame.put((byte) words);
+        for (int word = 0; word < words; word ++) {
+            long mask = 0L;
+            for (int bit = 0; bit < 64; bit ++) {
+                long sequence = cumulative + 1 + (word * 64) + bit;
+                if (sequence > highestReceived) break;
+                if (received.has(sequence)) mask |= 1L << bit;
+            }
+            frame.putLong(mask);
+        }
+
+        endFrame();
+    }
+
+    static int getSackWords(long cumulative, long highestReceived) {
+        return (int) Math.max(0L, (highestReceived - cumulative + 63) / 64);
+    }
+
+    static int getSackLength(boolean compact, boolean window, int words) {
+        return (compact ? 5 : 9) + (window ? 4 : 0) + (words * 8);
+    }
+
+    /**
+     * Writes a PACKET_CONTROL frame. CONTROL_MODE_CONNECT is always sent on its own with a legacy
+     * header: the peer may not have learned our capabilities and version yet.
+     * @param compact true to write a compact header, ignored for CONTROL_MODE_CONNECT.
+     * @param mode Control mode.
+     * @param capabilities Local capabilities, announced by CONTROL_MODE_CONNECT.
+     * @param version Local version, announced by CONTROL_MODE_CONNECT.
+     * @throws IOException
+     */
+    void writeControl(boolean compact, byte mode, byte capabilities, byte version) throws IOException {
+        boolean connect = mode == ReliabilitySocket.CONTROL_MODE_CONNECT;
+        ByteBuffer frame = beginFrame(ReliabilitySocket.PACKET_CONTROL, 3, !connect && compact, !connect);
+
+        frame.put(mode);
+        if (connect) {
+            frame.put(capabilities);
+            frame.put(version);
+        }
+
+        endFrame();
+    }
+
+    /**
+     * Writes a PACKET_MESSAGE frame.
+     * @param compact true to write a compact header.
+     * @param checksumType Checksum of the message.
+     * @param delivery Delivery of the message, which is unreliable.
+     * @param sequence Low 32 bits of the message sequence, if unreliable-sequenced.
+     * @param message Message, between the buffer's position and limit; left untouched.
+     * @throws IOException
+     */
+    void writeMessage(boolean compact, ChecksumType checksumType,
+                      Delivery delivery, int sequence, ByteBuffer message) throws IOException {
+        long checksum = checksumType.calculate(message);
+
+        ByteBuffer frame = beginFrame(ReliabilitySocket.PACKET_MESSAGE,
+                5 + checksumType.getLength() + message.remaining(), compact, true);
+
+        frame.put(delivery.getCode());
+        frame.putInt(sequence);
+        if (checksumType.getLength() == 2) frame.putShort((short) checksum);
+        else frame.putInt((int) checksum);
+        frame.put(message.duplicate());
+
+        endFrame();
+    }
+
+    /**
+     * Begins writing a frame. Must be followed by endFrame() once the body has been written.
+     * @param packetId Packet id of the frame.
+     * @param length Largest length of the frame body.
+     * @param compact true if the frame body is compact, and should be sent with a compact header.
+     * @param coalesce false if the frame must be sent in a datagram of its own.
+     * @return Buffer to write the frame body to.
+     * @throws IOException
+     */
+    private ByteBuffer beginFrame(byte packetId, int length, boolean compact, boolean coalesce) throws IOException {
+        int header = compact ? COMPACT_DATAGRAM_HEADER : DATAGRAM_HEADER;
+        coalesce &= coalescing && header + FRAME_HEADER + length <= frames.capacity();
+
+        //Frames already written go first, keeping the order in which frames were written.
+        if (!coalesce || compact != framesCompact || frames.remaining() < FRAME_HEADER + length)
+            flush();
+
+        if (!coalesce) {
+            frames.clear();
+            writeHeader(packetId, compact);
+            standalone = true;
+            return frames;
+        }
+
+        if (frameCount == 0) {
+            frames.clear();
+            writeHeader(ReliabilitySocket.PACKET_FRAMES, compact);
+            framesCompact = compact;
+        }
+
+        frames.put(packetId);
+        frameStart = frames.position();
+        frames.putShort((short) 0);
+        return frames;
+    }
+
+    private void writeHeader(byte packetId, boolean compact) {
+        if (compact) {
+            frames.put((byte) (packetId | ReliabilitySocket.COMPACT_HEADER));
+            frames.putInt((int) localPeerId);
+        } else {
+            frames.putLong(localPeerId);
+            frames.put(packetId);
+        }
+    }
+
+    private void endFrame() throws IOException {
+        if (standalone) {
+            transmit();
+            return;
+        }
+
+        frames.putShort(frameStart, (short) (frames.position() - frameStart - 2));
+        if (frameCount++ == 0) deadline = System.nanoTime() + flushDelay;
+    }
+
+    /**
+     * Finds if a frame would still fit in the datagram holding the coalesced frames.
+     * @param compact true if the frame body is compact.
+     * @param length Length of the frame body.
+     * @return true if frames are coalesced and the frame fits with them, false otherwise.
+     */
+    boolean fits(boolean compact, int length) {
+        return frameCount > 0 && compact == framesCompact && frames.remaining() >= FRAME_HEADER + length;
+    }
+
+    /**
+     * Sends every coalesced frame right away.
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (frameCount > 0) transmit();
+    }
+
+    private void transmit() throws IOException {
+        frames.flip();
+        try {
+            counters.datagramsSent.incrementAndGet();
+            counters.bytesSent.addAndGet(frames.remaining());
+            datagramSocket.send(new Datagram(null, frames, null));
+        } finally {
+            frames.clear();
+            frameCount = 0;
+            standalone = false;
+        }
+    }
+
+    /**
+     * Gets the amount of frames waiting to be sent.
+     * @return Frame count.
+     */
+    int getCount() {
+        return frameCount;
+    }
+
+    /**
+     * Gets the time by which the coalesced frames should be sent.
+     * @return Deadline (System.nanoTime()), only meaningful while frames are waiting.
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Allows frames to be coalesced, once the peer has announced CAPABILITY_FRAMES.
+     * @param coalescing true if the peer supports PACKET_FRAMES.
+     */
+    void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    long getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Sets the longest time a coalesced frame is held back waiting for more frames.
+     * @param flushDelay Flush delay, in nanoseconds.
+     */
+    void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+}
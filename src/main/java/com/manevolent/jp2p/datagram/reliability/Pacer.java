@@ -0,0 +1,42 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+/**
+ * Token bucket spreading a socket's transmissions over time. Tokens, one per packet, refill
+ * at the pacing rate up to the depth of the bucket, which is the largest burst allowed to
+ * leave back to back. Transmissions that cannot wait, such as fast retransmissions, may
+ * leave the bucket in debt, delaying those that can. All times are in nanoseconds
+ * (System.nanoTime()).
+ */
+class Pacer {
+    private double tokens = 0D;
+    private long last = 0L;
+    private boolean started = false;
+
+    /**
+     * Refills the bucket, and finds how long to wait before a packet may be transmitted.
+     * @param rate Pacing rate, in packets per nanosecond.
+     * @param depth Depth of the bucket, in packets.
+     * @param time Current time.
+     * @return 0 if a packet may be transmitted now, otherwise the time to wait.
+     */
+    synchronized long getDelay(double rate, double depth, long time) {
+        if (!started) {
+            tokens = depth;
+            started = true;
+        } else if (time > last) {
+            tokens = Math.min(depth, tokens + ((time - last) * rate));
+        }
+
+        last = Math.max(last, time);
+        if (tokens >= 1D) return 0L;
+
+        return (long) Math.ceil((1D - tokens) / rate);
+    }
+
+    /**
+     * Takes a token for a packet being transmitted.
+     */
+    synchronized void consume() {
+        tokens -= 1D;
+    }
+}
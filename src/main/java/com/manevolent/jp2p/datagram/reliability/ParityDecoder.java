@@ -0,0 +1,123 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Remembers the most recent pushes received from the peer, so a push lost from a parity group
+ * can be rebuilt from the group's parity and the pushes that did arrive. Only used by the
+ * socket's receiving thread.
+ */
+class ParityDecoder {
+    private final long[] sequences;
+    private final byte[] deliveries;
+    private final long[] checksums;
+    private final byte[][] data;
+
+    /**
+     * Group of the last parity received, left holding the push rebuilt from it.
+     */
+    private final ParityGroup group = new ParityGroup(ReliabilityPacket.MTU);
+
+    /**
+     * @param size Amount of pushes remembered; larger than any parity group.
+     */
+    ParityDecoder(int size) {
+        this.sequences = new long[size];
+        this.deliveries = new byte[size];
+        this.checksums = new long[size];
+        this.data = new byte[size][];
+
+        Arrays.fill(sequences, -1L);
+    }
+
+    /**
+     * Remembers a push received from the peer.
+     * @param sequence Remote sequence of the push.
+     * @param delivery Push delivery bits.
+     * @param checksum Push checksum, as received.
+     * @param data Push data.
+     */
+    void add(long sequence, byte delivery, long checksum, byte[] data) {
+        int index = (int) (sequence % sequences.length);
+
+        this.sequences[index] = sequence;
+        this.deliveries[index] = delivery;
+        this.checksums[index] = checksum;
+        this.data[index] = data;
+    }
+
+    /**
+     * Reads a PACKET_PARITY body, and rebuilds the push it repairs. A push is only rebuilt if
+     * it is the only one of the group missing, and is only trusted if it matches its own
+     * checksum.
+     * @param body Parity body, between the buffer's position and limit.
+     * @param compact true if the body is compact.
+     * @param checksumType Checksum of compact bodies.
+     * @param offset Lowest remote sequence not received in order yet.
+     * @return Sequence of the rebuilt push, whose delivery bits, checksum, length and data are
+     * then those of getGroup(), or -1 if none was rebuilt.
+     * @throws IOException
+     */
+    long recover(ByteBuffer body, boolean compact, ChecksumType checksumType, long offset) throws IOException {
+        if (!compact) checksumType = ChecksumType.INTERNET;
+
+        long base = compact ? ReliabilitySocket.unwrap(body.getInt(), offset) : body.getLong();
+        int count = body.get() & 0xFF;
+        byte delivery = body.get();
+        int length = body.getShort() & 0xFFFF;
+        long checksum;
+        if (!compact) checksum = body.getLong();
+        else if (checksumType.getLength() == 2) checksum = body.getShort() & 0xFFFFL;
+        else checksum = body.getInt() & 0xFFFFFFFFL;
+
+        if (body.remaining() > ReliabilityPacket.MTU) throw new IOException("Parity length invalid.");
+        if (base + count <= offset) return -1L; //Nothing lost.
+
+        group.set(base, count, delivery, length, checksum, body);
+        long sequence = recover(group);
+        if (sequence < 0) return -1L;
+
+        length = group.getLength();
+        if (length <= 0 || length > group.getSpan()) return -1L;
+        if (group.getChecksum() != checksumType.calculate(group.getData(), 0, length)) return -1L;
+
+        return sequence;
+    }
+
+    ParityGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * Removes every push remembered from a received parity. When exactly one push of the group
+     * is missing, the group is left holding it.
+     * @param group Group, set from a received parity.
+     * @return Sequence of the rebuilt push, or -1 if none or more than one push is missing.
+     */
+    private long recover(ParityGroup group) {
+        long base = group.getBase();
+        int count = group.getCount();
+        if (count > sequences.length) return -1L;
+
+        long missing = -1L;
+        for (long sequence = base; sequence < base + count; sequence ++) {
+            if (sequences[(int) (sequence % sequences.length)] == sequence) continue;
+            else if (missing >= 0) return -1L; //XOR parity can only rebuild one push.
+
+            missing = sequence;
+        }
+
+        if (missing < 0) return -1L;
+
+        for (long sequence = base; sequence < base + count; sequence ++) {
+            if (sequence == missing) continue;
+
+            int index = (int) (sequence % sequences.length);
+            group.add(deliveries[index], checksums[index], data[index], data[index].length);
+        }
+
+        return missing;
+    }
+}
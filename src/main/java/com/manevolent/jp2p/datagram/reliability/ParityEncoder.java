@@ -0,0 +1,100 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import java.io.IOException;
+
+/**
+ * Builds the parity groups a ReliabilitySocket protects its pushes with: every group of
+ * consecutive pushes is followed by a PACKET_PARITY frame holding the XOR of the group, from
+ * which the peer rebuilds any single push lost from the group without waiting for its
+ * retransmission. A group's size is picked from the loss rate measured by the socket, between
+ * the configured bounds, whenever the group starts; incomplete groups are sent by their
+ * deadline. Only used under the socket's sendLock, writing frames under its frame lock.
+ */
+class ParityEncoder {
+    private final ParityGroup group = new ParityGroup(ReliabilityPacket.MTU);
+    private int size;
+
+    /**
+     * Deadline of the group under construction, read by any thread; Long.MAX_VALUE if empty.
+     */
+    private volatile long deadline = Long.MAX_VALUE;
+
+    private volatile int minimumSize = 4;
+    private volatile int maximumSize = 32;
+
+    /**
+     * Adds a push to the group under construction, writing the parity of the group once it is
+     * complete, or of the previous group if the push does not follow it.
+     * @param writer Writer to write parities with.
+     * @param compact true to write compact parities.
+     * @param checksumType Checksum of compact parities.
+     * @param sequence Local sequence of the push.
+     * @param delivery Push delivery bits.
+     * @param checksum Push checksum, as sent.
+     * @param data Push data.
+     * @param lossRate Loss rate measured by the socket, sizing a new group.
+     * @param deadline Time (System.nanoTime()) by which a new group's parity is sent anyway.
+     * @return true if the push started a new group, false otherwise.
+     * @throws IOException
+     */
+    boolean add(FrameWriter writer, boolean compact, ChecksumType checksumType,
+                long sequence, byte delivery, long checksum, byte[] data,
+                double lossRate, long deadline) throws IOException {
+        //Groups only hold consecutive sequences.
+        if (group.getCount() > 0 && sequence != group.getBase() + group.getCount())
+            flush(writer, compact, checksumType);
+
+        boolean started = group.getCount() == 0;
+        if (started) {
+            group.reset(sequence, deadline);
+            this.deadline = deadline;
+            size = getSize(lossRate);
+        }
+
+        group.add(delivery, checksum, data, data.length);
+        if (group.getCount() >= size) flush(writer, compact, checksumType);
+        return started;
+    }
+
+    /**
+     * Writes the parity of the group under construction, if any, and empties the group.
+     * @param writer Writer to write the parity with.
+     * @param compact true to write a compact parity.
+     * @param checksumType Checksum of compact parities.
+     * @throws IOException
+     */
+    void flush(FrameWriter writer, boolean compact, ChecksumType checksumType) throws IOException {
+        if (group.getCount() <= 0) return;
+
+        try {
+            writer.writeParity(compact, checksumType, group);
+        } finally {
+            group.reset(0L, Long.MAX_VALUE);
+            deadline = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Gets the time by which the parity of the group under construction is sent.
+     * @return Deadline (System.nanoTime()), or Long.MAX_VALUE if no group is under construction.
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Gets the size of the next group for a loss rate: as large as allows for a single loss
+     * per group, within the bounds.
+     * @param lossRate Loss rate, between 0 and 1.
+     * @return Group size, in pushes.
+     */
+    int getSize(double lossRate) {
+        int size = lossRate <= 0D ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, 0.5D / lossRate);
+        return Math.max(minimumSize, Math.min(maximumSize, size));
+    }
+
+    void setBounds(int minimum, int maximum) {
+        this.minimumSize = minimum;
+        this.maximumSize = maximum;
+    }
+}
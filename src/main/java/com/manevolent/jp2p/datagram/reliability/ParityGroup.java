@@ -0,0 +1,122 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * XOR parity over a group of consecutive pushes: the delivery bits, lengths, checksums and data
+ * of every push in the group, XORed together. XORing the parity with every push of the group but
+ * one leaves exactly the push that is missing.
+ */
+class ParityGroup {
+    private final byte[] data;
+
+    private long base;
+    private int count;
+    private int span;
+
+    private byte delivery;
+    private int length;
+    private long checksum;
+
+    /**
+     * Time (System.nanoTime()) by which the parity of an incomplete group is sent anyway.
+     */
+    private long deadline;
+
+    ParityGroup(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * Starts a new, empty group.
+     * @param base Sequence of the first push of the group.
+     * @param deadline Time by which the parity should be sent.
+     */
+    void reset(long base, long deadline) {
+        Arrays.fill(data, 0, span, (byte) 0);
+
+        this.base = base;
+        this.deadline = deadline;
+        this.count = 0;
+        this.span = 0;
+        this.delivery = 0;
+        this.length = 0;
+        this.checksum = 0;
+    }
+
+    /**
+     * Starts a group from a received parity, so the pushes received can be removed from it.
+     * @param base Sequence of the first push of the group.
+     * @param count Amount of pushes in the group.
+     * @param delivery Parity of the push delivery bits.
+     * @param length Parity of the push lengths.
+     * @param checksum Parity of the push checksums.
+     * @param data Parity of the push data, between the buffer's position and limit.
+     */
+    void set(long base, int count, byte delivery, int length, long checksum, ByteBuffer data) {
+        reset(base, 0);
+
+        this.count = count;
+        this.delivery = delivery;
+        this.length = length;
+        this.checksum = checksum;
+        this.span = data.remaining();
+        data.get(this.data, 0, span);
+    }
+
+    /**
+     * XORs a push into the group.
+     * @param delivery Push delivery bits, i.e. its mode without PUSH_MODE_SEND or PUSH_MODE_RESEND.
+     * @param checksum Push checksum.
+     * @param packet Push data.
+     * @param length Push length.
+     */
+    void add(byte delivery, long checksum, byte[] packet, int length) {
+        this.delivery ^= delivery;
+        this.length ^= length;
+        this.checksum ^= checksum;
+
+        for (int i = 0; i < length; i ++)
+            data[i] ^= packet[i];
+
+        span = Math.max(span, length);
+        count ++;
+    }
+
+    long getBase() {
+        return base;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the length of the data parity, that of the longest push of the group.
+     * @return Span.
+     */
+    int getSpan() {
+        return span;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    byte getDelivery() {
+        return delivery;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    long getChecksum() {
+        return checksum;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,33 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the packets of one asynchronous send, completing its future once every packet
+ * has been acknowledged by the peer.
+ */
+class PendingSend {
+    private final SettableFuture<Void> future = SettableFuture.create();
+    private final AtomicInteger remaining;
+
+    PendingSend(int packets) {
+        this.remaining = new AtomicInteger(packets);
+    }
+
+    SettableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * Called when one of the packets of the send has been acknowledged.
+     */
+    void acknowledged() {
+        if (remaining.decrementAndGet() == 0) future.set(null);
+    }
+
+    void fail(Throwable throwable) {
+        future.setException(throwable);
+    }
+}
@@ -0,0 +1,27 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of a socket's traffic. Every counter is updated without locking, by whichever
+ * thread sees the event, and read at any time by ReliabilityStatistics.
+ */
+class ReliabilityCounters {
+    final AtomicLong datagramsSent = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong datagramsReceived = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+
+    final AtomicLong pushesSent = new AtomicLong();
+    final AtomicLong retransmissions = new AtomicLong();
+    final AtomicLong pushesReceived = new AtomicLong();
+    final AtomicLong duplicates = new AtomicLong();
+    final AtomicLong checksumFailures = new AtomicLong();
+    final AtomicLong recovered = new AtomicLong();
+
+    /**
+     * Time writers spent waiting for the local sequencer, the congestion window or the peer's
+     * receive window to let their data out, in nanoseconds.
+     */
+    final AtomicLong blockedTime = new AtomicLong();
+}
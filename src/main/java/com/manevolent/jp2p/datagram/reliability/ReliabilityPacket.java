@@ -6,11 +6,66 @@ public class ReliabilityPacket {
     private byte[] data;
     private boolean acknowledged;
 
+    /**
+     * Time (System.nanoTime()) of the last transmission of this packet.
+     */
+    private long sendTime;
+
+    /**
+     * Time (System.nanoTime()) at which this packet is retransmitted if still unacknowledged.
+     */
+    private long timeout;
+
+    private int transmissions;
+    private boolean fastRetransmitted;
+
+    /**
+     * Asynchronous send this packet belongs to, if any.
+     */
+    private PendingSend send;
+
+    /**
+     * Delivery code of the message this packet carries, or 0 if it carries stream data.
+     */
+    private byte delivery;
+
+    /**
+     * Stream this packet carries data of, if any.
+     */
+    private ReliabilityStream stream;
+
     public ReliabilityPacket(byte[] data) {
         this.data = data;
         this.acknowledged = false;
     }
 
+    ReliabilityPacket(byte[] data, PendingSend send) {
+        this(data);
+        this.send = send;
+    }
+
+    ReliabilityPacket(byte[] data, PendingSend send, byte delivery) {
+        this(data, send);
+        this.delivery = delivery;
+    }
+
+    ReliabilityPacket(byte[] data, PendingSend send, ReliabilityStream stream) {
+        this(data, send, ReliabilitySocket.PUSH_DELIVERY_STREAM);
+        this.stream = stream;
+    }
+
+    PendingSend getSend() {
+        return send;
+    }
+
+    byte getDelivery() {
+        return delivery;
+    }
+
+    ReliabilityStream getStream() {
+        return stream;
+    }
+
     public boolean isAcknowledged() {
         return acknowledged;
     }
@@ -22,4 +77,35 @@ public class ReliabilityPacket {
     public byte[] getData() {
         return data;
     }
+
+    public boolean isFastRetransmitted() {
+        return fastRetransmitted;
+    }
+
+    public void setFastRetransmitted(boolean fastRetransmitted) {
+        this.fastRetransmitted = fastRetransmitted;
+    }
+
+    public long getSendTime() {
+        return sendTime;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getTransmissions() {
+        return transmissions;
+    }
+
+    /**
+     * Records a transmission of this packet.
+     * @param time Time of the transmission.
+     * @param timeout Time at which the packet should be retransmitted.
+     */
+    public void transmitted(long time, long timeout) {
+        this.sendTime = time;
+        this.timeout = timeout;
+        this.transmissions ++;
+    }
 }
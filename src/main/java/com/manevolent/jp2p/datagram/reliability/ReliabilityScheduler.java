@@ -0,0 +1,247 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives update() for any number of ReliabilitySockets from a few threads, instead of a
+ * thread or polling loop per socket. Each thread runs a hashed timer wheel: the deadlines of
+ * its sockets (retransmission timeouts, delayed acknowledgements and frames, parities, pacing,
+ * and the ping keeping a silent connection alive) are hashed into slots of one tick each, and
+ * every tick only the sockets whose deadline falls in the current slot are updated, with a
+ * single clock read for the whole tick. Sockets move their deadline earlier on their own
+ * whenever they need to, e.g. when a push arms a retransmission timeout.
+ */
+public class ReliabilityScheduler implements Closeable {
+    private final long tick;
+    private final Wheel[] wheels;
+    private final AtomicInteger nextWheel = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param threads Amount of threads, each running a wheel of its own.
+     * @param tick Duration of a tick, the resolution of every deadline.
+     * @param unit Unit of the tick duration.
+     * @param slots Amount of slots of each wheel, rounded up to a power of 2.
+     */
+    public ReliabilityScheduler(int threads, long tick, TimeUnit unit, int slots) {
+        if (threads < 1) throw new IllegalArgumentException("Invalid thread count: " + threads);
+        if (tick <= 0) throw new IllegalArgumentException("Invalid tick: " + tick);
+        if (slots < 1 || slots > (1 << 24)) throw new IllegalArgumentException("Invalid slot count: " + slots);
+
+        this.tick = unit.toNanos(tick);
+        this.wheels = new Wheel[threads];
+
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) size <<= 1;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i ++) {
+            wheels[i] = new Wheel(start, size);
+
+            Thread thread = new Thread(wheels[i], "ReliabilityScheduler-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates a scheduler ticking every millisecond, with a wheel spanning half a second.
+     * @param threads Amount of threads.
+     */
+    public ReliabilityScheduler(int threads) {
+        this(threads, 1, TimeUnit.MILLISECONDS, 512);
+    }
+
+    public ReliabilityScheduler() {
+        this(1);
+    }
+
+    /**
+     * Starts updating a socket. The socket must not be updated by anything else.
+     * @param socket Socket to update.
+     */
+    public void register(ReliabilitySocket socket) {
+        Timer timer = new Timer(socket, wheels[(nextWheel.getAndIncrement() & Integer.MAX_VALUE) % wheels.length]);
+        socket.setTimer(timer);
+        timer.schedule(System.nanoTime());
+    }
+
+    /**
+     * Stops updating a socket.
+     * @param socket Socket to stop updating.
+     */
+    public void unregister(ReliabilitySocket socket) {
+        Timer timer = socket.getTimer();
+        if (timer == null) return;
+
+        timer.cancel();
+        socket.setTimer(null);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops every thread of the scheduler, and forgets every deadline. Sockets are no longer
+     * updated, and deadlines they schedule from then on are dropped.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+    }
+
+    /**
+     * Deadline of a single socket. Only ever moved earlier by the socket; the wheel moves it
+     * later once it has updated the socket.
+     */
+    static final class Timer {
+        private final ReliabilitySocket socket;
+        private final Wheel wheel;
+        private final AtomicLong deadline = new AtomicLong(Long.MAX_VALUE);
+        private volatile boolean cancelled = false;
+
+        private Timer(ReliabilitySocket socket, Wheel wheel) {
+            this.socket = socket;
+            this.wheel = wheel;
+        }
+
+        /**
+         * Makes sure the socket is updated no later than a deadline.
+         * @param deadline Time (System.nanoTime()) by which the socket must be updated.
+         */
+        void schedule(long deadline) {
+            long current;
+            do {
+                current = this.deadline.get();
+                if (cancelled || deadline >= current) return; //Already updated in time.
+            } while (!this.deadline.compareAndSet(current, deadline));
+
+            wheel.submit(new Entry(this, deadline));
+        }
+
+        /**
+         * Stops updating the socket. Entries of the timer left in the wheel are skipped.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * A deadline hashed into a slot of the wheel. Entries left behind when a deadline moves
+     * earlier are stale, and skipped when their slot comes up.
+     */
+    private static final class Entry {
+        private final Timer timer;
+        private final long deadline;
+        private long rounds;
+
+        private Entry(Timer timer, long deadline) {
+            this.timer = timer;
+            this.deadline = deadline;
+        }
+    }
+
+    private final class Wheel implements Runnable {
+        private final long start;
+        private final List<List<Entry>> slots;
+        private final int mask;
+
+        /**
+         * Entries submitted by any thread, hashed into their slot by the wheel's own thread at
+         * the next tick, so slots are never shared.
+         */
+        private final Queue<Entry> submitted = new ConcurrentLinkedQueue<Entry>();
+        private long ticks = 0;
+
+        private Wheel(long start, int size) {
+            this.start = start;
+            this.mask = size - 1;
+            this.slots = new ArrayList<List<Entry>>(size);
+            for (int i = 0; i < size; i ++)
+                slots.add(new ArrayList<Entry>());
+        }
+
+        private void submit(Entry entry) {
+            if (running) submitted.offer(entry);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                long target = start + ((ticks + 1) * tick);
+                long time;
+                while ((time = System.nanoTime()) < target)
+                    LockSupport.parkNanos(target - time);
+
+                hash();
+
+                //Catch up on every tick that has passed, e.g. after a long update.
+                while (running && start + ((ticks + 1) * tick) <= time)
+                    expire(slots.get((int) (ticks++ & mask)), time);
+            }
+
+            //Closed: nothing is hashed anymore.
+            submitted.clear();
+            for (List<Entry> slot : slots)
+                slot.clear();
+        }
+
+        /**
+         * Hashes every submitted entry into the slot of its deadline, or the current slot if
+         * the deadline has passed.
+         */
+        private void hash() {
+            Entry entry;
+            while ((entry = submitted.poll()) != null) {
+                long deadline = (entry.deadline - start + tick - 1) / tick;
+                long due = Math.max(ticks, deadline - 1);
+
+                entry.rounds = (due - ticks) / slots.size();
+                slots.get((int) (due & mask)).add(entry);
+            }
+        }
+
+        private void expire(List<Entry> slot, long time) {
+            int count = slot.size();
+            for (int i = 0; i < count; i ++) {
+                Entry entry = slot.get(i);
+                if (entry.rounds > 0) {
+                    entry.rounds --;
+                    continue;
+                }
+
+                //Remove by moving the last entry in its place.
+                slot.set(i, slot.get(count - 1));
+                slot.remove(--count);
+                i --;
+
+                Timer timer = entry.timer;
+                if (timer.cancelled || !timer.deadline.compareAndSet(entry.deadline, Long.MAX_VALUE))
+                    continue; //Moved earlier since.
+
+                //A socket failing to update is closed, which also cancels its timer.
+                ReliabilitySocket socket = timer.socket;
+                try {
+                    socket.update(time);
+                } catch (IOException e) {
+                    socket.abort(e);
+                } finally {
+                    timer.schedule(socket.getNextDeadline());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import com.manevolent.jp2p.datagram.Datagram;
+import com.manevolent.jp2p.datagram.DatagramHandler;
+import com.manevolent.jp2p.datagram.DatagramSocket;
+import com.manevolent.jp2p.endpoint.SocketEndpoint;
+import com.manevolent.jp2p.server.NetworkServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves many ReliabilitySocket connections from a single datagram socket. One receive loop
+ * (run()) demultiplexes every datagram by its source endpoint and peer identifier to the
+ * matching connection; a CONTROL_MODE_CONNECT from an unknown source creates a connection,
+ * which is then handed out by accept() once it has handled the request. Connections are
+ * forgotten when they are closed, when their peer disconnects, or when it stays silent for
+ * longer than the connection's idle timeout (see ReliabilitySocket.setIdleTimeout()).
+ *
+ * Connections do not run their own receive loop, but still need update() to be called
+ * periodically, which the server does for all of them in update(), or leaves to a
+ * ReliabilityScheduler given at construction.
+ */
+public class ReliabilityServer extends NetworkServer implements DatagramHandler, Runnable {
+    /**
+     * Largest amount of datagrams run() handles per batch.
+     */
+    private static final int RECEIVE_BATCH = 64;
+
+    private final DatagramSocket datagramSocket;
+    private final ReliabilityScheduler scheduler;
+
+    private final ConcurrentMap<ConnectionKey, ReliabilitySocket> connections =
+            new ConcurrentHashMap<ConnectionKey, ReliabilitySocket>();
+
+    /**
+     * Connections waiting to be accepted, guarded by acceptLock; accepted is signalled when one
+     * is queued, and when the server is closed.
+     */
+    private final Queue<ReliabilitySocket> acceptQueue = new ArrayDeque<ReliabilitySocket>();
+    private final ReentrantLock acceptLock = new ReentrantLock();
+    private final Condition accepted = acceptLock.newCondition();
+
+    /**
+     * Connections that received datagrams in the current batch of run(), which send their
+     * acknowledgements once the batch ends.
+     */
+    private final List<ReliabilitySocket> batch = new ArrayList<ReliabilitySocket>();
+    private boolean batching = false;
+
+    /**
+     * Statistics of every connection forgotten so far, so the server's totals never shrink.
+     */
+    private volatile ReliabilityStatistics departed = ReliabilityStatistics.EMPTY;
+
+    private volatile boolean running = true;
+
+    public ReliabilityServer(DatagramSocket datagramSocket) {
+        this(datagramSocket, null);
+    }
+
+    /**
+     * @param datagramSocket Datagram socket to serve connections from.
+     * @param scheduler Scheduler updating every connection, or null if update() is called instead.
+     */
+    public ReliabilityServer(DatagramSocket datagramSocket, ReliabilityScheduler scheduler) {
+        this.datagramSocket = datagramSocket;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Waits for a peer to connect.
+     * @return Connection of the peer.
+     * @throws IOException if the server is closed, before or while waiting.
+     */
+    @Override
+    public ReliabilitySocket accept() throws IOException {
+        acceptLock.lock();
+        try {
+            ReliabilitySocket connection;
+            while ((connection = acceptQueue.poll()) == null) {
+                if (!running) throw new IOException("Server closed");
+                accepted.await();
+            }
+
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while accepting");
+        } finally {
+            acceptLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return running;
+    }
+
+    /**
+     * Closes the server: wakes every thread waiting in accept(), disconnects and closes every
+     * connection, failing their pending sends, and closes the datagram socket.
+     * @throws IOException the first error closing a connection or the datagram socket, once
+     * everything is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+
+        //Closing a connection disconnects its peer, and has the server forget it.
+        IOException error = null;
+        for (ReliabilitySocket connection : connections.values()) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        connections.clear();
+
+        try {
+            if (datagramSocket instanceof Closeable)
+                ((Closeable) datagramSocket).close();
+        } catch (IOException e) {
+            if (error == null) error = e;
+            else error.addSuppressed(e);
+        }
+
+        if (error != null) throw error;
+    }
+
+    /**
+     * Closes the server once its datagram socket has failed: every connection is closed with
+     * the error, without flushing or disconnecting peers that can no longer be reached.
+     * @param cause Error of the datagram socket.
+     */
+    private void abort(IOException cause) {
+        stop();
+
+        for (ReliabilitySocket connection : connections.values()) connection.abort(cause);
+        connections.clear();
+
+        try {
+            if (datagramSocket instanceof Closeable)
+                ((Closeable) datagramSocket).close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Stops accepting connections, waking every thread waiting in accept().
+     */
+    private void stop() {
+        running = false;
+
+        acceptLock.lock();
+        try {
+            acceptQueue.clear();
+            accepted.signalAll();
+        } finally {
+            acceptLock.unlock();
+        }
+    }
+
+    /**
+     * Receives datagrams for every connection of the server until it is closed, in batches
+     * of as many datagrams as the socket has queued. The server is closed if the datagram
+     * socket fails.
+     */
+    @Override
+    public void run() {
+        while (isConnected()) {
+            batching = true;
+            try {
+                //Non-blocking sockets may have nothing queued.
+                datagramSocket.receive(this, RECEIVE_BATCH);
+            } catch (IOException e) {
+                if (isConnected()) abort(e);
+            } finally {
+                endBatch();
+            }
+        }
+    }
+
+    private void endBatch() {
+        batching = false;
+
+        //A connection failing to send its acknowledgements is closed, and forgotten.
+        for (int i = 0; i < batch.size(); i ++) {
+            try {
+                batch.get(i).endBatch();
+            } catch (IOException e) {
+                batch.get(i).abort(e);
+            }
+        }
+
+        batch.clear();
+    }
+
+    /**
+     * Routes a received datagram to its connection, creating the connection if the datagram
+     * is a connection request from an unknown peer. Outside of run(), the connection handles
+     * the datagram on its own rather than as part of a batch.
+     * @param datagram Datagram to route.
+     * @throws IOException
+     */
+    @Override
+    public void handle(Datagram datagram) throws IOException {
+        SocketEndpoint endpoint = datagram.getEndpoint();
+        ByteBuffer buffer = datagram.getBuffer();
+        if (endpoint == null || buffer.remaining() < 5) { //[Type] [Connection Id]
+            datagram.release();
+            return;
+        }
+
+        //Compact headers carry the connection id alone, but only once the peer has negotiated them.
+        if ((buffer.get(buffer.position()) & ReliabilitySocket.COMPACT_HEADER) != 0) {
+            ConnectionKey key = new ConnectionKey(endpoint, buffer.getInt(buffer.position() + 1));
+            ReliabilitySocket connection = connections.get(key);
+            if (connection != null && connection.isCompact()) {
+                handle(key, connection, datagram);
+                return;
+            }
+        }
+
+        if (buffer.remaining() < 10) { //[Peer Id] [Type] [Ctl Mode]
+            datagram.release();
+            return;
+        }
+
+        long peerId = buffer.getLong(buffer.position());
+        ConnectionKey key = new ConnectionKey(endpoint, (int) peerId);
+
+        ReliabilitySocket connection = connections.get(key);
+        if (connection != null) {
+            handle(key, connection, datagram);
+            return;
+        }
+
+        boolean connect =
+                buffer.get(buffer.position() + 8) == ReliabilitySocket.PACKET_CONTROL &&
+                buffer.get(buffer.position() + 9) == ReliabilitySocket.CONTROL_MODE_CONNECT;
+
+        if (!connect || peerId == 0 || !running) {
+            datagram.release();
+            return;
+        }
+
+        connection = connect(key, endpoint);
+        try {
+            handle(key, connection, datagram);
+        } finally {
+            //Only hand out connections whose request was handled.
+            if (connection.getMode() == ReliabilitySocket.Mode.CONNECTED) {
+                acceptLock.lock();
+                try {
+                    acceptQueue.offer(connection);
+                    accepted.signal();
+                } finally {
+                    acceptLock.unlock();
+                }
+            } else {
+                connection.abort(new IOException("Connection request rejected"));
+            }
+        }
+    }
+
+    /**
+     * Creates the connection of a peer requesting one, to be forgotten once its idle timeout
+     * expires or it is closed, and starts serving it.
+     * @param key Key of the connection.
+     * @param endpoint Endpoint of the peer.
+     * @return Connection.
+     */
+    private ReliabilitySocket connect(final ConnectionKey key, SocketEndpoint endpoint) {
+        final ReliabilitySocket connection = createSocket(new ConnectionSocket(endpoint), endpoint);
+        connection.setDisconnectListener(new Runnable() {
+            @Override
+            public void run() {
+                forget(key, connection);
+            }
+        });
+
+        connections.put(key, connection);
+        if (scheduler != null) scheduler.register(connection);
+        return connection;
+    }
+
+    private void handle(ConnectionKey key, ReliabilitySocket connection, Datagram datagram) throws IOException {
+        if (batching && !connection.isBatching()) {
+            connection.beginBatch();
+            batch.add(connection);
+        }
+
+        //A connection failing to handle its datagram is closed, and forgotten.
+        try {
+            connection.handle(datagram);
+        } catch (IOException e) {
+            connection.abort(e);
+            return;
+        }
+
+        //The peer disconnected.
+        if (connection.getMode() == ReliabilitySocket.Mode.WAITING) forget(key, connection);
+    }
+
+    /**
+     * Forgets a connection, stops updating it, and closes it if it was never accepted.
+     * @param key Key of the connection.
+     * @param connection Connection to forget.
+     */
+    private void forget(ConnectionKey key, ReliabilitySocket connection) {
+        if (!connections.remove(key, connection)) return; //Already forgotten.
+
+        if (scheduler != null) scheduler.unregister(connection);
+        departed = departed.add(connection.getStatistics().getTotals());
+
+        boolean queued;
+        acceptLock.lock();
+        try {
+            queued = acceptQueue.remove(connection);
+        } finally {
+            acceptLock.unlock();
+        }
+
+        //Nobody has written to it, so there is nothing to flush.
+        if (queued) connection.abort(new IOException("Disconnected before being accepted"));
+    }
+
+    /**
+     * Updates every connection of the server. Should be called periodically from a single thread.
+     * Connections failing to update are closed, and forgotten.
+     */
+    public void update() {
+        for (ReliabilitySocket connection : connections.values()) {
+            try {
+                connection.update();
+            } catch (IOException e) {
+                connection.abort(e);
+            }
+        }
+    }
+
+    /**
+     * Gets a snapshot of the connections currently served.
+     * @return List of connections.
+     */
+    public List<ReliabilitySocket> getConnections() {
+        return new ArrayList<ReliabilitySocket>(connections.values());
+    }
+
+    /**
+     * Sums the transport statistics of every connection the server has served, including
+     * those since disconnected; the round-trip and window figures only cover current ones.
+     * @return Aggregate statistics.
+     */
+    public ReliabilityStatistics getStatistics() {
+        ReliabilityStatistics current = ReliabilityStatistics.of(connections.values());
+        return departed.add(current);
+    }
+
+    /**
+     * Creates the socket of a newly connected peer.
+     * @param datagramSocket Datagram socket addressing the peer through the server.
+     * @param endpoint Endpoint of the peer.
+     * @return ReliabilitySocket instance.
+     */
+    protected ReliabilitySocket createSocket(DatagramSocket datagramSocket, SocketEndpoint endpoint) {
+        return new ReliabilitySocket(datagramSocket, endpoint);
+    }
+
+    /**
+     * Identifies a connection by its peer's endpoint and connection id, the low 32 bits of
+     * its peer id, which both legacy and compact headers carry.
+     */
+    private static final class ConnectionKey {
+        private final SocketEndpoint endpoint;
+        private final int connectionId;
+
+        private ConnectionKey(SocketEndpoint endpoint, int connectionId) {
+            this.endpoint = endpoint;
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConnectionKey)) return false;
+
+            ConnectionKey key = (ConnectionKey) o;
+            return key.connectionId == connectionId && key.endpoint.equals(endpoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * endpoint.hashCode() + connectionId;
+        }
+    }
+
+    /**
+     * Sends a connection's datagrams to its peer through the server's socket. Datagrams are
+     * only ever received by the server.
+     */
+    private final class ConnectionSocket extends DatagramSocket {
+        private final SocketEndpoint endpoint;
+
+        private ConnectionSocket(SocketEndpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public Datagram receive() throws IOException {
+            throw new UnsupportedOperationException("Datagrams are received by the server");
+        }
+
+        @Override
+        public void send(Datagram bytes) throws IOException {
+            datagramSocket.send(new Datagram(endpoint, bytes.getBuffer(), null));
+        }
+    }
+}
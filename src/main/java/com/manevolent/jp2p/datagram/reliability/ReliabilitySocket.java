@@ -1,9 +1,14 @@
 package com.manevolent.jp2p.datagram.reliability;
 
-import com.manevolent.jp2p.RFC1071;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.manevolent.jp2p.buffer.BufferPool;
 import com.manevolent.jp2p.client.NetworkClient;
 import com.manevolent.jp2p.datagram.Datagram;
+import com.manevolent.jp2p.datagram.DatagramHandler;
 import com.manevolent.jp2p.datagram.DatagramSocket;
+import com.manevolent.jp2p.datagram.reliability.congestion.CongestionController;
+import com.manevolent.jp2p.datagram.reliability.congestion.NewRenoController;
 import com.manevolent.jp2p.endpoint.Endpoint;
 import com.manevolent.jp2p.extensible.socket.NativeDatagramSocket;
 import com.manevolent.jp2p.extensible.stream.ByteBufferInputStream;
@@ -12,264 +17,1928 @@ import com.manevolent.jp2p.extensible.stream.ByteBufferOutputStream;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A very low latency, sequenced, reliable transport over UDP. Does not at all
- * account for network congestion or other related factors -- instead is very heavily
- * focused on transmission speed and the smallest RTT possible. Also does not guarantee
- * sender identity -- should be done by a higher-level protocol instead.
+ * A very low latency, sequenced, reliable transport over UDP. Heavily focused on
+ * transmission speed and the smallest RTT possible; the amount of data in flight is
+ * limited by a pluggable CongestionController (NewReno-style AIMD by default). Does not
+ * guarantee sender identity -- should be done by a higher-level protocol instead.
+ *
+ * Besides its ordered byte stream, the socket carries messages with their own delivery mode
+ * (see Delivery), so latency-sensitive messages are not held back behind lost stream data,
+ * and any number of independent streams (see ReliabilityStream).
  */
 public class ReliabilitySocket
         extends NetworkClient
-        implements ByteBufferOutputStream.ByteBufferFlushCallback,
+        implements ByteBufferOutputStream.GatheringFlushCallback,
+                    DatagramHandler,
                     Runnable {
 
+    /**
+     * Longest time (in milliseconds) the socket stays silent before pinging its peer.
+     */
     private static final long WINDOW_TIME = 1000;
 
-    public static final byte PACKET_CONTROL = 0x1; //[Ctl Mode]
-    public static final byte PACKET_PUSH = 0x2; //[Psh Mode] [Seq] [Len] [Data..] [Checksum]
-    public static final byte PACKET_ACK = 0x3; //[Seq]
+    /**
+     * Default idle timeout, in milliseconds.
+     */
+    private static final long IDLE_TIMEOUT = 30000;
+
+    /**
+     * Number of in-order pushes to receive before a selective acknowledgement is sent.
+     */
+    private static final int ACK_FREQUENCY = 2;
+
+    /**
+     * Longest time (in milliseconds) an acknowledgement is held back waiting for more pushes.
+     */
+    private static final long ACK_DELAY = 10;
+
+    /**
+     * Number of later sequences that must be acknowledged while the oldest local packet is
+     * still unacknowledged before it is considered lost and retransmitted immediately.
+     */
+    private static final int DUPLICATE_THRESHOLD = 3;
+
+    /**
+     * Maximum amount of received messages waiting for the application. Unreliable messages
+     * arriving past it are dropped; reliable messages are never pushed past it, see
+     * PUSH_DELIVERY_CREDIT.
+     */
+    private static final int MESSAGE_QUEUE = 1024;
+
+    /**
+     * Size (in bytes) of the buffer holding received stream data for the application.
+     */
+    private static final int RECEIVE_BUFFER = 64 * 1024;
+
+    /**
+     * Largest amount of datagrams run() handles per batch.
+     */
+    private static final int RECEIVE_BATCH = 64;
+
+    /**
+     * Shortest time (in milliseconds) an incomplete parity group waits for more pushes before
+     * its parity is sent. Groups otherwise wait for half the round-trip time, which still
+     * repairs a loss ahead of its fast retransmission.
+     */
+    private static final long PARITY_DELAY = 2;
+
+    /**
+     * Bounds of the parity group size, and the amount of received pushes remembered to
+     * rebuild lost ones from parities.
+     */
+    public static final int MINIMUM_PARITY_GROUP = 1;
+    public static final int MAXIMUM_PARITY_GROUP = 64;
+    private static final int PARITY_HISTORY = 256;
+
+    /**
+     * Amount of acknowledged packets the loss rate is averaged over.
+     */
+    private static final int LOSS_WINDOW = 64;
+
+    /**
+     * Pacing rate relative to the congestion window delivered every round trip; slightly
+     * above 1, so pacing never keeps the window from being used up.
+     */
+    private static final double PACING_GAIN = 1.25D;
+
+    /**
+     * Time (in nanoseconds) of transmissions the pacing bucket holds at least, so bursts
+     * released between two update() calls do not starve fast connections.
+     */
+    private static final long PACING_QUANTUM = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Stands in the remote sequencer for reliable messages, which are delivered without
+     * passing through the stream.
+     */
+    private static final ReliabilityPacket DELIVERED = new ReliabilityPacket(new byte[0]);
+
+    public static final byte PACKET_CONTROL = 0x1; //[Ctl Mode]
+    public static final byte PACKET_PUSH = 0x2; //[Psh Mode] [Seq] [Len] [Data..] [Checksum]
+    public static final byte PACKET_ACK = 0x3; //[Seq] [Window]
+    public static final byte PACKET_SACK = 0x4; //[Cumulative Seq] [Window] [Mask Len] [Mask..]
+    public static final byte PACKET_FRAMES = 0x5; //{[Packet Id] [Frame Len] [Body..]}..
+    public static final byte PACKET_MESSAGE = 0x6; //[Delivery] [Seq32] [Checksum16/32] [Data..]
+    public static final byte PACKET_PARITY = 0x7; //[Base Seq] [Count] [Delivery] [Len] [Checksum] [Data..]
+
+    public static final byte PUSH_MODE_SEND = 0x1;
+    public static final byte PUSH_MODE_RESEND = 0x2;
+
+    /**
+     * The upper bits of a push mode hold the Delivery code of the message a push carries, or
+     * 0 for stream data. Reliable-ordered messages are prefixed with their own [Seq32].
+     */
+    public static final byte PUSH_DELIVERY_MASK = (byte) 0xF0;
+    public static final byte PUSH_DELIVERY_STREAM = 0x50;
+
+    /**
+     * Pushes with PUSH_DELIVERY_CREDIT carry [Stream Id] [Limit Seq32]: the stream sequence up
+     * to which the receiver allows the stream to be pushed, or for stream id 0, the count of
+     * reliable messages up to which it allows messages to be pushed. Sent reliably, as the
+     * sender waits for them, to peers announcing CAPABILITY_STREAMS or CAPABILITY_MESSAGES.
+     */
+    public static final byte PUSH_DELIVERY_CREDIT = 0x60;
+
+    public static final byte CONTROL_MODE_CONNECT = 0x1; //[Ctl Mode] [Capabilities] [Version]
+    public static final byte CONTROL_MODE_PING = 0x2;
+    public static final byte CONTROL_MODE_DISCONNECT = 0x3;
+
+    /**
+     * Capabilities are announced as a flag byte following CONTROL_MODE_CONNECT. Peers that
+     * do not send one are assumed to only understand PACKET_ACK.
+     */
+    public static final byte CAPABILITY_SACK = 0x1;
+    public static final byte CAPABILITY_FRAMES = 0x2;
+    public static final byte CAPABILITY_CRC32 = 0x4;
+    public static final byte CAPABILITY_CRC32C = 0x8;
+    public static final byte CAPABILITY_MESSAGES = 0x10;
+    public static final byte CAPABILITY_STREAMS = 0x20;
+    public static final byte CAPABILITY_PARITY = 0x40;
+
+    /**
+     * Acknowledgements between peers both announcing CAPABILITY_WINDOW carry a [Window]: the
+     * amount of stream data (in bytes, 32 bits) the receiver has room for beyond everything
+     * it acknowledged.
+     */
+    public static final byte CAPABILITY_WINDOW = (byte) 0x80;
+
+    private static final byte LOCAL_CAPABILITIES = (byte) (CAPABILITY_SACK | CAPABILITY_FRAMES |
+            CAPABILITY_MESSAGES | CAPABILITY_STREAMS | CAPABILITY_PARITY | CAPABILITY_WINDOW);
+
+    /**
+     * Wire versions, announced following the capabilities of CONTROL_MODE_CONNECT. Peers that
+     * do not announce one only understand VERSION_LEGACY.
+     *
+     * VERSION_LEGACY heads every datagram with the full 8-byte peer id and packet id, and
+     * carries full 64-bit sequences, a 64-bit checksum and an explicit length in every PUSH.
+     *
+     * VERSION_COMPACT heads every datagram with [Packet Id | COMPACT_HEADER] [Connection Id],
+     * the connection id being the low 32 bits of the sender's peer id. Sequences are wrapped
+     * to 32 bits and unwrapped against the receiver's window, checksums are those negotiated
+     * at connect (16 bits, or 32 bits for CRCs), and the length of a PUSH is implied by the size
+     * of its datagram or frame:
+     *   PUSH [Psh Mode] [Seq32] [Checksum16/32] [Data..]
+     *   ACK  [Seq32] [Window]
+     *   SACK [Cumulative Seq32] [Window] [Mask Len] [Mask..]
+     *   PARITY [Base Seq32] [Count] [Delivery] [Len] [Checksum16/32] [Data..]
+     * CONTROL_MODE_CONNECT is always sent with a legacy header. Local peer ids are never
+     * negative, so a set COMPACT_HEADER bit tells a compact datagram from a legacy one.
+     */
+    public static final byte VERSION_LEGACY = 1;
+    public static final byte VERSION_COMPACT = 2;
+    public static final byte COMPACT_HEADER = (byte) 0x80;
+
+    private static final byte LOCAL_VERSION = VERSION_COMPACT;
+
+    private DatagramSocket datagramSocket;
+    private Endpoint endpoint;
+    private volatile Mode socketMode = Mode.WAITING;
+
+    /**
+     * Set once the socket is closed, along with the error it was closed for, which writers
+     * waiting for the send window fail with.
+     */
+    private volatile boolean closed = false;
+    private volatile IOException cause;
+
+    private long remotePeerId = 0;
+    private final long localPeerId = (new Random()).nextLong() & Long.MAX_VALUE;
+    private volatile byte remoteCapabilities = 0;
+    private volatile byte remoteVersion = VERSION_LEGACY;
+
+    /**
+     * Strongest checksum offered to the peer at connect, and the checksum negotiated with it
+     * for compact headers.
+     */
+    private volatile ChecksumType localChecksum = ChecksumType.INTERNET;
+    private volatile ChecksumType checksum = ChecksumType.INTERNET;
+
+    /**
+     * We keep a remote sequencer to remember remote sequences. Only the receiving
+     * thread puts and consumes remote sequences.
+     */
+    private SequenceBuffer<ReliabilityPacket> remoteSequence =
+            new SingleProducerSequencer<ReliabilityPacket>(1024);
+
+    /**
+     * We keep a local sequence to remember where we are in our send
+     * operations. Packets are put by pump() under sendLock, and consumed
+     * by the receiving thread once acknowledged.
+     */
+    private SequenceBuffer<ReliabilityPacket> localSequence =
+            new SingleProducerSequencer<ReliabilityPacket>(1024);
+
+    /**
+     * Packets waiting for room in the local sequencer and the congestion window, in the
+     * order they were written. Moved into the local sequencer by pump(), which is called
+     * whenever data is written and whenever acknowledgements open the window. Reliable
+     * messages wait apart, so they are not held back when the peer's receive window is full.
+     */
+    private final Queue<ReliabilityPacket> pending = new ConcurrentLinkedQueue<ReliabilityPacket>();
+    private final Queue<ReliabilityPacket> pendingMessages = new ConcurrentLinkedQueue<ReliabilityPacket>();
+
+    /**
+     * Credit granted to the peer, waiting apart from messages, which may be waiting for credit
+     * from the peer themselves.
+     */
+    private final Queue<ReliabilityPacket> pendingCredits = new ConcurrentLinkedQueue<ReliabilityPacket>();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Condition sent = sendLock.newCondition();
+
+    /**
+     * Every queue of pending packets: the socket's own three followed by those of its streams,
+     * replaced whenever a stream is opened or drained after closing. pump() takes turns
+     * between them, so a bulk stream cannot hold back the others. Queued counts the packets
+     * pending across all of them.
+     */
+    private volatile List<Queue<ReliabilityPacket>> sources =
+            Arrays.<Queue<ReliabilityPacket>>asList(pending, pendingMessages, pendingCredits);
+    private final AtomicInteger queued = new AtomicInteger();
+    private int turn = 0;
+
+    /**
+     * Open streams by id, streams opened by the peer waiting to be accepted, the id of the
+     * next stream opened locally, and the highest id of any stream opened by the peer (-1 if none).
+     */
+    private final Map<Integer, ReliabilityStream> streams = new ConcurrentHashMap<Integer, ReliabilityStream>();
+    private final BlockingQueue<ReliabilityStream> acceptedStreams = new LinkedBlockingQueue<ReliabilityStream>();
+    private int nextStreamId = 0;
+    private int highestRemoteStream = -1;
+
+    /**
+     * Longest time (in milliseconds) flush() blocks waiting for the window to open, or 0 to
+     * block indefinitely.
+     */
+    private volatile long sendTimeout = 0;
+
+    /**
+     * Keeps track of the last time (System.nanoTime()) any data was pushed, or
+     * the last time any ping was sent, whichever happened last will be the
+     * time represented by this field.
+     */
+    private volatile long lastSend;
+
+    /**
+     * Time (System.nanoTime()) the last datagram was received from the peer, and the longest
+     * time (in milliseconds) a connected peer may stay silent before the socket moves back to
+     * WAITING, or 0 to wait indefinitely. Live peers ping at least every WINDOW_TIME.
+     */
+    private volatile long lastReceive;
+    private volatile long idleTimeout = IDLE_TIMEOUT;
+
+    /**
+     * Run once the peer is assumed gone as its idle timeout expired, or once the socket is
+     * closed, e.g. by a ReliabilityServer forgetting the connection.
+     */
+    private volatile Runnable disconnectListener;
+
+    /**
+     * Estimates the round-trip time to the peer, and with it the retransmission timeout
+     * of every pushed packet.
+     */
+    private final RoundTripEstimator roundTrip = new RoundTripEstimator();
+
+    /**
+     * Earliest retransmission timeout of any unacknowledged packet, so update() can skip
+     * scanning the local sequencer when nothing is due.
+     */
+    private volatile long nextTimeout = Long.MAX_VALUE;
+
+    /**
+     * Time of the last loss signalled to the congestion controller, by a retransmission timeout
+     * or a fast retransmit, guarded by sendLock. Packets last sent before it belong to the same
+     * loss episode, and don't signal it again.
+     */
+    private long lossEpisode = Long.MIN_VALUE;
+
+    /**
+     * Spreads pushes and timeout retransmissions at the congestion window per round-trip time,
+     * instead of sending whatever the window allows back to back. pump() leaves packets the
+     * pacer holds back for update() to push once the pacer is next due.
+     */
+    private final Pacer pacer = new Pacer();
+    private volatile boolean pacing = true;
+    private volatile int pacingBurst = 10;
+    private volatile long nextPace = Long.MAX_VALUE;
+
+    /**
+     * Timer of the ReliabilityScheduler updating this socket, woken whenever a deadline comes
+     * up earlier than those it knows about, or null if update() is called by the application.
+     */
+    private volatile ReliabilityScheduler.Timer timer;
+
+    /**
+     * Limits the amount of unacknowledged packets in flight.
+     */
+    private final CongestionController congestionController;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Fast retransmit state, owned by the receiving thread: later sequences acknowledged
+     * since the oldest local packet last changed, and the highest sequence acknowledged.
+     */
+    private int laterAcks = 0;
+    private long highestAcknowledged = -1;
+
+    /**
+     * Guards the coalescing of outgoing frames as well as the selective acknowledgement
+     * state, so pending acknowledgements can ride along with any datagram being sent.
+     */
+    private final Object frameLock = new Object();
+
+    /**
+     * Encodes outgoing frames, coalescing them into a single datagram for peers announcing
+     * CAPABILITY_FRAMES. With no flush delay, frames are only coalesced within a single
+     * operation, e.g. pushes released by the same acknowledgement, or a push and the
+     * acknowledgement it piggybacks.
+     */
+    private final FrameWriter frameWriter;
+
+    /**
+     * Selective acknowledgement state: pushes received since the last SACK was sent, the
+     * time by which a pending SACK must go out, and the highest remote sequence held.
+     */
+    private int pendingAcks = 0;
+    private long ackDeadline = 0;
+    private long highestReceived = -1;
+
+    /**
+     * Message state: sequences of the next reliable-ordered and unreliable-sequenced messages
+     * sent, reliable-ordered messages received ahead of their turn, the newest unreliable-
+     * sequenced message received, and every message waiting for the application. Only the
+     * receiving thread puts and consumes received messages.
+     */
+    private final AtomicLong orderedSequence = new AtomicLong();
+    private long sequencedSequence = 0;
+    private final SequenceBuffer<ByteBuffer> orderedMessages = new SingleProducerSequencer<ByteBuffer>(MESSAGE_QUEUE);
+    private int orderedHeld = 0;
+    private long highestSequenced = -1;
+    private final BlockingQueue<ByteBuffer> messages = new LinkedBlockingQueue<ByteBuffer>();
+
+    /**
+     * Message flow control state. Reliable messages pushed, guarded by sendLock, and the count
+     * of reliable messages the peer allows pushing, raised by the receiving thread. Reliable
+     * messages received, and the count last granted to the peer, guarded by messages; the
+     * peer is granted room once the application has taken a quarter of MESSAGE_QUEUE.
+     */
+    private long messagesPushed = 0;
+    private volatile long messageCredit = MESSAGE_QUEUE;
+    private long messagesReceived = 0;
+    private long messagesGranted = MESSAGE_QUEUE;
+
+    /**
+     * Flow control state. Stream data is only accepted from the peer when the input stream
+     * has room for it along with every stream push held out of order, so ingest() never
+     * waits on the application; held counts the bytes of those pushes. The room left is
+     * advertised in every acknowledgement, and windowClosed remembers if it was too small for
+     * a push, so update() tells the peer once the application has read enough.
+     *
+     * The sender keeps the unacknowledged stream data it pushed within the window last
+     * advertised by the peer, but always allows a single push in flight, which probes the
+     * window should the update be lost.
+     */
+    private volatile int held = 0;
+    private volatile boolean windowClosed = false;
+    private volatile int remoteWindow = RECEIVE_BUFFER;
+    private final AtomicInteger windowInFlight = new AtomicInteger();
+
+    /**
+     * Batch state, owned by the receiving thread: while a batch of datagrams is handled, the
+     * acknowledgements they call for and the stream data they complete are held back, and
+     * sent and ingested at once when the batch ends. AckNow remembers if any acknowledgement
+     * of the batch should not have been delayed.
+     */
+    private boolean batching = false;
+    private boolean ackNow = false;
+    private final List<byte[]> ingested = new ArrayList<byte[]>();
+
+    private final ReliabilityCounters counters = new ReliabilityCounters();
+
+    /**
+     * Forward error correction state. When enabled, and the peer announces CAPABILITY_PARITY,
+     * every group of consecutive pushes is followed by a PACKET_PARITY frame holding the XOR
+     * of the group, from which the peer rebuilds any single push lost from the group without
+     * waiting for its retransmission. The group under construction is owned by pump() under
+     * sendLock; its size is picked from the loss rate measured from retransmissions, between
+     * the configured bounds, whenever a group starts.
+     */
+    private volatile boolean forwardErrorCorrection = false;
+    private volatile double lossRate = 0D;
+    private final ParityEncoder parityEncoder = new ParityEncoder();
+
+    /**
+     * Pushes received recently, owned by the receiving thread. Allocated on connection when
+     * the peer announces CAPABILITY_PARITY, so every push it sends can be rebuilt, including
+     * those of its first parity group.
+     */
+    private ParityDecoder parityDecoder;
+
+    //The following streams are for higher-level use:
+    private ByteBufferInputStream inputStream;
+    private ByteBufferOutputStream outputStream;
+
+    public ReliabilitySocket(DatagramSocket datagramSocket,
+                             Endpoint endpoint,
+                             CongestionController congestionController) {
+        this.datagramSocket = datagramSocket;
+        this.endpoint = endpoint;
+        this.congestionController = congestionController;
+        this.frameWriter = new FrameWriter(datagramSocket, counters, localPeerId);
+
+        inputStream = new ByteBufferInputStream(BufferPool.getDefault(), RECEIVE_BUFFER) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                opened();
+                return read;
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                int read = super.read(bytes, off, len);
+                opened();
+                return read;
+            }
+
+            @Override
+            public int read(ByteBuffer target) throws IOException {
+                int read = super.read(target);
+                opened();
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                opened();
+                return skipped;
+            }
+        };
+        outputStream = new ByteBufferOutputStream(BufferPool.getDefault(), 1024, this);
+    }
+
+    public ReliabilitySocket(DatagramSocket datagramSocket, Endpoint endpoint) {
+        this(datagramSocket, endpoint, new NewRenoController(1024));
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return outputStream;
+    }
+
+    @Override
+    public Endpoint getRemoteEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Finds if the socket is connected to its peer: it has exchanged CONTROL_MODE_CONNECT, and
+     * neither side has disconnected, gone idle or been closed since.
+     * @return true if connected, false otherwise.
+     */
+    @Override
+    public boolean isConnected() {
+        return !closed && socketMode == Mode.CONNECTED;
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
+    /**
+     * Closes the socket, telling a connected peer with CONTROL_MODE_DISCONNECT so it does not
+     * wait for its idle timeout, failing every send not acknowledged yet, and stops the
+     * scheduler updating it, if any.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+
+        try {
+            outputStream.flush();
+            outputStream.close();
+
+            if (socketMode == Mode.CONNECTED) sendControl(CONTROL_MODE_DISCONNECT);
+        } finally {
+            abort(new IOException("Socket closed"));
+        }
+    }
+
+    /**
+     * Closes the socket without flushing it or telling the peer, e.g. once its receive loop
+     * or timer has failed. Every send not acknowledged yet fails with the cause, and so does
+     * every writer waiting for the send window.
+     * @param cause Error the socket is closed for.
+     */
+    public void abort(IOException cause) {
+        if (closed) return;
+        this.cause = cause;
+        closed = true;
+
+        ReliabilityScheduler.Timer timer = this.timer;
+        if (timer != null) {
+            timer.cancel();
+            this.timer = null;
+        }
+
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+
+        socketMode = Mode.WAITING;
+
+        //Anything never acknowledged will not be anymore.
+        sendLock.lock();
+        try {
+            ReliabilityPacket packet;
+            for (Queue<ReliabilityPacket> source : sources)
+                while ((packet = source.poll()) != null)
+                    if (packet.getSend() != null) packet.getSend().fail(cause);
+
+            long offset = localSequence.getOffset();
+            for (long sequence = offset; sequence < offset + localSequence.getCaret(); sequence ++) {
+                packet = localSequence.get(sequence);
+                if (packet != null && !packet.isAcknowledged() && packet.getSend() != null)
+                    packet.getSend().fail(cause);
+            }
+
+            sent.signalAll();
+        } finally {
+            sendLock.unlock();
+        }
+
+        Runnable disconnectListener = this.disconnectListener;
+        if (disconnectListener != null) disconnectListener.run();
+    }
+
+    /**
+     * Gets the longest time a connected peer may stay silent.
+     * @return Idle timeout, in milliseconds, or 0 if the peer may stay silent indefinitely.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the longest time a connected peer may stay silent. Once it expires, the peer is
+     * assumed gone and the socket moves back to WAITING, as if the peer had disconnected.
+     * @param idleTimeout Idle timeout, in milliseconds, or 0 to wait indefinitely.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0) throw new IllegalArgumentException("Invalid timeout: " + idleTimeout);
+        this.idleTimeout = idleTimeout;
+        wake(System.nanoTime());
+    }
+
+    /**
+     * Finds if the stream is currently blocked, meaning all available egress sequence buckets have been filled,
+     * or the congestion window does not allow any more packets in flight.
+     * @return true if the socket will block on flush, false otherwise.
+     */
+    public boolean isBlocked() {
+        return localSequence.available() <= 0 || inFlight.get() >= congestionController.getWindow();
+    }
+
+    /**
+     * Gets the longest time flush() blocks waiting for the window to open.
+     * @return Send timeout, in milliseconds, or 0 if flush() blocks indefinitely.
+     */
+    public long getSendTimeout() {
+        return sendTimeout;
+    }
+
+    /**
+     * Sets the longest time flush() blocks waiting for the window to open. When the timeout
+     * expires a SocketTimeoutException is thrown; data already written is still sent.
+     * @param sendTimeout Send timeout, in milliseconds, or 0 to block indefinitely.
+     */
+    public void setSendTimeout(long sendTimeout) {
+        if (sendTimeout < 0) throw new IllegalArgumentException("Invalid timeout: " + sendTimeout);
+        this.sendTimeout = sendTimeout;
+    }
+
+    /**
+     * Gets the longest time a coalesced frame is held back waiting for more frames.
+     * @return Flush delay, in milliseconds.
+     */
+    public long getFlushDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(frameWriter.getFlushDelay());
+    }
+
+    /**
+     * Sets the longest time a coalesced frame is held back waiting for more frames before
+     * its datagram is sent by update(). A short delay trades a little latency for far fewer
+     * datagrams on chatty, small-message workloads.
+     * @param flushDelay Flush delay, in milliseconds, or 0 to send at the end of every operation.
+     */
+    public void setFlushDelay(long flushDelay) {
+        if (flushDelay < 0) throw new IllegalArgumentException("Invalid delay: " + flushDelay);
+        frameWriter.setFlushDelay(TimeUnit.MILLISECONDS.toNanos(flushDelay));
+    }
+
+    /**
+     * Finds if transmissions are paced.
+     * @return true if transmissions are paced, false if they are sent as soon as the window allows.
+     */
+    public boolean isPacing() {
+        return pacing;
+    }
+
+    /**
+     * Enables or disables pacing. Paced sockets spread pushes and retransmissions evenly over
+     * the round-trip time, rather than in bursts that overflow the queues along the path.
+     * update() must be called about every millisecond for paced sockets to use their window.
+     * @param pacing true to pace transmissions.
+     */
+    public void setPacing(boolean pacing) {
+        this.pacing = pacing;
+    }
+
+    /**
+     * Gets the largest amount of packets sent back to back when pacing.
+     * @return Burst allowance, in packets.
+     */
+    public int getPacingBurst() {
+        return pacingBurst;
+    }
+
+    /**
+     * Sets the largest amount of packets sent back to back when pacing. Fast connections may
+     * burst as many packets as their pacing rate releases in a millisecond, if more.
+     * @param pacingBurst Burst allowance, in packets.
+     */
+    public void setPacingBurst(int pacingBurst) {
+        if (pacingBurst < 1) throw new IllegalArgumentException("Invalid burst: " + pacingBurst);
+        this.pacingBurst = pacingBurst;
+    }
+
+    /**
+     * Finds if pushes are protected with forward error correction.
+     * @return true if parities are sent to peers supporting them, false otherwise.
+     */
+    public boolean isForwardErrorCorrection() {
+        return forwardErrorCorrection;
+    }
+
+    /**
+     * Enables or disables forward error correction. Parities cost bandwidth, up to a push per
+     * parity group, but repair a single loss per group within a fraction of the round-trip
+     * time instead of a retransmission timeout, which suits latency-sensitive traffic over
+     * lossy links.
+     * @param forwardErrorCorrection true to send parities to peers supporting them.
+     */
+    public void setForwardErrorCorrection(boolean forwardErrorCorrection) {
+        this.forwardErrorCorrection = forwardErrorCorrection;
+    }
+
+    /**
+     * Sets the bounds of the parity group size. Groups are as large as the measured loss rate
+     * allows for a single loss per group, and never smaller than the minimum, nor larger than
+     * the maximum.
+     * @param minimum Smallest group size.
+     * @param maximum Largest group size.
+     */
+    public void setParityGroupBounds(int minimum, int maximum) {
+        if (minimum < MINIMUM_PARITY_GROUP || maximum > MAXIMUM_PARITY_GROUP || minimum > maximum)
+            throw new IllegalArgumentException("Invalid parity group bounds: " + minimum + "-" + maximum);
+
+        parityEncoder.setBounds(minimum, maximum);
+    }
+
+    /**
+     * Gets the size of the next parity group, picked from the measured loss rate.
+     * @return Parity group size, in pushes.
+     */
+    public int getParityGroupSize() {
+        return parityEncoder.getSize(lossRate);
+    }
+
+    /**
+     * Gets the fraction of recently acknowledged packets that had to be retransmitted.
+     * @return Loss rate, between 0 and 1.
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * Writes data to the peer, blocking (without spinning) until all of it has been pushed,
+     * i.e. until the local sequencer and the congestion window had room for every packet.
+     * @param buffers Data to write, between the buffers' positions and limits, in order.
+     * @throws IOException
+     */
+    @Override
+    public void flush(ByteBuffer[] buffers) throws IOException {
+        if (remaining(buffers) <= 0) throw new IOException("Cannot flush empty buffers");
+
+        ReliabilityPacket last = enqueue(buffers, null);
+        pump();
+        awaitTransmission(last);
+    }
+
+    /**
+     * Waits, for at most the send timeout, until a packet has been pushed.
+     * @param last Packet to wait for.
+     * @throws IOException if the socket is closed first.
+     */
+    void awaitTransmission(ReliabilityPacket last) throws IOException {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(sendTimeout);
+        long start = System.nanoTime();
+        sendLock.lock();
+        try {
+            while (last.getTransmissions() <= 0) {
+                if (closed) throw new IOException("Socket closed", cause);
+                else if (sendTimeout == 0)
+                    sent.await();
+                else if ((timeout = sent.awaitNanos(timeout)) <= 0)
+                    throw new SocketTimeoutException("Timed out waiting for the send window");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the send window");
+        } finally {
+            sendLock.unlock();
+            counters.blockedTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes data to the peer without blocking. The data is copied and queued behind anything
+     * written before it; the returned future completes once the peer has acknowledged all of
+     * it, or fails if the socket is closed first.
+     * @param buffer Data to write, between the buffer's position and limit.
+     * @return Future completed on full acknowledgement.
+     * @throws IOException
+     */
+    public ListenableFuture<Void> sendAsync(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (length <= 0) return Futures.immediateFuture(null);
+
+        PendingSend send = new PendingSend((length + ReliabilityPacket.MTU - 1) / ReliabilityPacket.MTU);
+        enqueue(new ByteBuffer[] { buffer }, send);
+        pump();
+
+        return send.getFuture();
+    }
+
+    /**
+     * Sends a message to the peer, which receives it whole through receiveMessage().
+     * Reliable messages are queued behind other reliable messages, taking turns with stream
+     * data, and the returned future completes once the peer has acknowledged the message; unreliable
+     * messages are sent right away, outside of the congestion window.
+     * @param message Message to send, between the buffer's position and limit.
+     * @param delivery Delivery mode of the message.
+     * @return Future completed on acknowledgement, or immediately for unreliable messages.
+     * @throws IOException
+     */
+    public ListenableFuture<Void> sendMessage(ByteBuffer message, Delivery delivery) throws IOException {
+        int length = message.remaining();
+        if (length <= 0 || length > getMaximumMessageSize())
+            throw new IllegalArgumentException("Invalid message length: " + length);
+        if ((remoteCapabilities & CAPABILITY_MESSAGES) == 0)
+            throw new IOException("Peer does not support messages");
+
+        if (!delivery.isReliable()) {
+            writeMessage(delivery, message);
+            completeFrames();
+            return Futures.immediateFuture(null);
+        }
+
+        boolean ordered = delivery == Delivery.RELIABLE_ORDERED;
+        ByteBuffer data = ByteBuffer.allocate((ordered ? 4 : 0) + length);
+        if (ordered) data.putInt((int) orderedSequence.getAndIncrement());
+        data.put(message);
+
+        PendingSend send = new PendingSend(1);
+        queue(pendingMessages, new ReliabilityPacket(data.array(), send, delivery.getCode()));
+        pump();
+
+        return send.getFuture();
+    }
+
+    /**
+     * Receives the next message from the peer, blocking until one arrives.
+     * @return Message, between the buffer's position and limit.
+     * @throws IOException
+     */
+    public ByteBuffer receiveMessage() throws IOException {
+        try {
+            ByteBuffer message = messages.take();
+            taken();
+            return message;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a message");
+        }
+    }
+
+    /**
+     * Receives the next message from the peer, blocking until one arrives or the timeout expires.
+     * @param timeout Longest time to wait, in milliseconds.
+     * @return Message, between the buffer's position and limit, or null if the timeout expired.
+     * @throws IOException
+     */
+    public ByteBuffer receiveMessage(long timeout) throws IOException {
+        try {
+            ByteBuffer message = messages.poll(timeout, TimeUnit.MILLISECONDS);
+            if (message != null) taken();
+            return message;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a message");
+        }
+    }
+
+    /**
+     * Called when the application takes a message, granting the peer room for more reliable
+     * messages once enough was made.
+     * @throws IOException
+     */
+    private void taken() throws IOException {
+        long limit;
+        synchronized (messages) {
+            limit = messagesReceived + Math.max(0, MESSAGE_QUEUE - messages.size() - orderedHeld);
+            if (limit - messagesGranted < MESSAGE_QUEUE / 4) return;
+            messagesGranted = limit;
+        }
+
+        grant(0, limit);
+    }
+
+    /**
+     * Grants the peer credit to push a stream, or reliable messages. Called when the
+     * application has read enough.
+     * @param id Stream id, or 0 for reliable messages.
+     * @param limit Stream sequence, or count of reliable messages, up to which the peer may push.
+     * @throws IOException
+     */
+    void grant(int id, long limit) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(6);
+        data.putShort((short) id);
+        data.putInt((int) limit);
+
+        queue(pendingCredits, new ReliabilityPacket(data.array(), null, PUSH_DELIVERY_CREDIT));
+        pump();
+    }
+
+    /**
+     * Gets the largest message sendMessage() accepts.
+     * @return Maximum message size, in bytes.
+     */
+    public int getMaximumMessageSize() {
+        return ReliabilityPacket.MTU - 4;
+    }
+
+    /**
+     * Splits data into packets of at most one transfer unit and queues them to be pushed.
+     * Packets are filled across the boundaries of the buffers.
+     * @param buffers Data to queue, in order.
+     * @param send Asynchronous send the packets belong to, if any.
+     * @return The last packet queued.
+     */
+    private ReliabilityPacket enqueue(ByteBuffer[] buffers, PendingSend send) {
+        ReliabilityPacket packet = null;
+
+        //Write the data, wrapping it around the MTU.
+        int remaining = remaining(buffers);
+        while (remaining > 0) {
+            byte[] data = new byte[Math.min(remaining, ReliabilityPacket.MTU)];
+            get(buffers, data, 0, data.length);
+            remaining -= data.length;
+
+            packet = new ReliabilityPacket(data, send);
+            queue(pending, packet);
+        }
+
+        return packet;
+    }
+
+    /**
+     * Pushes as many queued packets as the local sequencer and the congestion window allow,
+     * waking up every flush() waiting on them.
+     * @throws IOException
+     */
+    void pump() throws IOException {
+        if (queued.get() <= 0) return;
+
+        sendLock.lock();
+        try {
+            boolean pushed = false;
+            ReliabilityPacket packet;
+            while (!isBlocked() && queued.get() > 0) {
+                long time = System.nanoTime();
+                long delay = pace(time);
+                if (delay > 0) {
+                    nextPace = time + delay; //Left for update().
+                    wake(nextPace);
+                    break;
+                }
+
+                if ((packet = poll()) == null) break;
+
+                //Put this data into the sequencer so it can be managed by the network thread.
+                long seq = localSequence.put(packet);
+                transmit(seq, packet, PUSH_MODE_SEND, time);
+                pushed = true;
+            }
+
+            if (pushed) sent.signalAll();
+        } finally {
+            sendLock.unlock();
+        }
+
+        completeFrames();
+    }
+
+    /**
+     * Queues a packet to be pushed by pump().
+     * @param source Queue of the socket or of one of its streams.
+     * @param packet Packet to queue.
+     */
+    void queue(Queue<ReliabilityPacket> source, ReliabilityPacket packet) {
+        source.offer(packet);
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Takes the next pending packet, one source at a time. Called under sendLock.
+     * @return Next packet to push, or null if none is pending.
+     */
+    private ReliabilityPacket poll() {
+        List<Queue<ReliabilityPacket>> sources = this.sources;
+        int count = sources.size();
+        for (int i = 0; i < count; i ++) {
+            turn = (turn + 1) % count;
+
+            Queue<ReliabilityPacket> source = sources.get(turn);
+            ReliabilityPacket packet = source.peek();
+            if (packet != null && fitsWindow(packet)) {
+                source.poll();
+                queued.decrementAndGet();
+                if (source == pendingMessages) messagesPushed ++;
+                return packet;
+            }
+        }
+
+        if (count > streams.size() + 3) forgetClosedStreams();
+        return null;
+    }
+
+    //
+    // Streams
+    //
+
+    /**
+     * Opens a new stream to the peer. The peer learns about the stream, and accepts it, when
+     * the first data written to it arrives.
+     * @return Stream.
+     * @throws IOException
+     */
+    public ReliabilityStream openStream() throws IOException {
+        if ((remoteCapabilities & CAPABILITY_STREAMS) == 0)
+            throw new IOException("Peer does not support streams");
+
+        ReliabilityStream stream;
+        synchronized (streams) {
+            //Peers take turns on ids, the one with the lowest peer id taking odd ids.
+            if (nextStreamId == 0) nextStreamId = localPeerId < remotePeerId ? 1 : 2;
+            if (nextStreamId > 0xFFFF) throw new IOException("Out of stream ids");
+
+            stream = new ReliabilityStream(this, nextStreamId);
+            nextStreamId += 2;
+
+            addStream(stream);
+        }
+
+        return stream;
+    }
+
+    /**
+     * Accepts the next stream opened by the peer, blocking until one is.
+     * @return Stream.
+     * @throws IOException
+     */
+    public ReliabilityStream acceptStream() throws IOException {
+        try {
+            return acceptedStreams.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while accepting a stream");
+        }
+    }
+
+    /**
+     * Accepts the next stream opened by the peer, blocking until one is or the timeout expires.
+     * @param timeout Longest time to wait, in milliseconds.
+     * @return Stream, or null if the timeout expired.
+     * @throws IOException
+     */
+    public ReliabilityStream acceptStream(long timeout) throws IOException {
+        try {
+            return acceptedStreams.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while accepting a stream");
+        }
+    }
+
+    private void addStream(ReliabilityStream stream) {
+        synchronized (streams) {
+            streams.put(stream.getId(), stream);
+
+            List<Queue<ReliabilityPacket>> sources = new ArrayList<Queue<ReliabilityPacket>>(this.sources);
+            sources.add(stream.getPending());
+            this.sources = sources;
+        }
+    }
+
+    /**
+     * Forgets about a stream closed locally. Its pending packets are still pushed.
+     * @param stream Closed stream.
+     */
+    void release(ReliabilityStream stream) {
+        streams.remove(stream.getId());
+    }
+
+    private void forgetClosedStreams() {
+        synchronized (streams) {
+            List<Queue<ReliabilityPacket>> sources = new ArrayList<Queue<ReliabilityPacket>>();
+            sources.add(pending);
+            sources.add(pendingMessages);
+            sources.add(pendingCredits);
+            for (ReliabilityStream stream : streams.values())
+                sources.add(stream.getPending());
+
+            //Closed streams with packets left keep their turn until drained.
+            for (Queue<ReliabilityPacket> source : this.sources)
+                if (!source.isEmpty() && !sources.contains(source)) sources.add(source);
+
+            this.sources = sources;
+        }
+    }
+
+    /**
+     * Routes a stream packet received from the peer to its stream, creating the stream if
+     * the peer just opened it.
+     * @param data Packet data, including the stream header.
+     * @throws IOException
+     */
+    private void receiveStream(byte[] data) throws IOException {
+        if (data.length < ReliabilityStream.HEADER) throw new IOException("Stream header truncated.");
+
+        int id = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+        if (id == 0) throw new IOException("Invalid stream id.");
+
+        ReliabilityStream stream = streams.get(id);
+        if (stream == null) {
+            int first = localPeerId < remotePeerId ? 2 : 1;
+            if ((id & 1) != (first & 1) || id <= highestRemoteStream) return; //Closed already.
+
+            //Streams are opened in order, so anything skipped is opening too.
+            int opened = highestRemoteStream < 0 ? first : highestRemoteStream + 2;
+            for (; opened <= id; opened += 2) {
+                ReliabilityStream accepted = new ReliabilityStream(this, opened);
+                addStream(accepted);
+                acceptedStreams.offer(accepted);
+            }
+
+            highestRemoteStream = id;
+            stream = streams.get(id);
+        }
+
+        stream.receive(data);
+    }
+
+    /**
+     * Implements the reliability algorithm for this socket. To keep the connection running,
+     * there should be a separate thread running elsewhere that continually sends control
+     * messages to ping this socket.
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            beginBatch();
+            try {
+                //Non-blocking sockets may have nothing queued.
+                datagramSocket.receive(this, RECEIVE_BATCH);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    endBatch();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a batch of datagrams. Called by the receiving thread.
+     */
+    void beginBatch() {
+        batching = true;
+    }
+
+    boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Ends a batch of datagrams, ingesting the stream data it completed in one go, and sending
+     * a single acknowledgement for all of it along with any other frame written meanwhile.
+     * Called by the receiving thread.
+     * @throws IOException
+     */
+    void endBatch() throws IOException {
+        batching = false;
+
+        for (int i = 0; i < ingested.size(); i ++) push(ingested.get(i));
+        ingested.clear();
+
+        synchronized (frameLock) {
+            if (pendingAcks > 0 && (ackNow || pendingAcks >= ACK_FREQUENCY)) writeSack();
+            ackNow = false;
+        }
+
+        completeFrames();
+    }
+
+    /**
+     * Handles a single datagram received from the peer. Called by run(), or by a
+     * ReliabilityServer demultiplexing many connections from a single receive loop.
+     * @param packet Datagram to handle; released once read.
+     * @throws IOException
+     */
+    public void handle(Datagram packet) throws IOException {
+        try {
+            if (closed) return;
+
+            ByteBuffer buffer = packet.getBuffer();
+            counters.datagramsReceived.incrementAndGet();
+            counters.bytesReceived.addAndGet(buffer.remaining());
+
+            byte packetId;
+            boolean compact = (buffer.get(buffer.position()) & COMPACT_HEADER) != 0;
+            if (compact) {
+                //Peer ids are positive, so this can only be a compact datagram, which is dropped
+                //until the peer's CONNECT has told us it speaks the compact version.
+                if (!isCompact()) return;
+
+                packetId = (byte) (buffer.get() & ~COMPACT_HEADER);
+                int connectionId = buffer.getInt();
+                if (socketMode == Mode.WAITING || connectionId != (int) remotePeerId) return;
+            } else {
+                long peerId = buffer.getLong();
+                if (socketMode == Mode.WAITING) this.remotePeerId = peerId;
+                else if (peerId == 0 || this.remotePeerId != peerId) return;
+
+                packetId = buffer.get();
+            }
+
+            lastReceive = System.nanoTime();
+
+            if (packetId != PACKET_FRAMES) {
+                handle(packetId, buffer, compact);
+                return;
+            }
+
+            while (buffer.hasRemaining()) {
+                byte frameId = buffer.get();
+                int length = buffer.getShort() & 0xFFFF;
+                if (length > buffer.remaining()) throw new IOException("Frame length invalid: " + length);
+
+                ByteBuffer frame = buffer.slice();
+                frame.limit(length);
+                buffer.position(buffer.position() + length);
+
+                if (frameId != PACKET_FRAMES) handle(frameId, frame, compact);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Datagram truncated", e);
+        } finally {
+            packet.release();
+            if (!batching) completeFrames();
+        }
+    }
+
+    /**
+     * Handles a single packet, received on its own or as a frame of a PACKET_FRAMES datagram.
+     * @param packetId Packet id.
+     * @param body Packet body, between the buffer's position and limit.
+     * @param compact true if the packet has a compact (VERSION_COMPACT) body.
+     * @throws IOException
+     */
+    private void handle(byte packetId, ByteBuffer body, boolean compact) throws IOException {
+        if (packetId == PACKET_CONTROL) {
+            byte controlMode = body.get();
+            switch (controlMode) {
+                case CONTROL_MODE_CONNECT:
+                    if (body.hasRemaining())
+                        remoteCapabilities = body.get();
+                    remoteVersion = body.hasRemaining() ? body.get() : VERSION_LEGACY;
+                    checksum = ChecksumType.negotiate((byte) (getLocalCapabilities() & remoteCapabilities));
+                    frameWriter.setCoalescing((remoteCapabilities & CAPABILITY_FRAMES) != 0);
+
+                    if ((remoteCapabilities & CAPABILITY_PARITY) != 0 && parityDecoder == null)
+                        parityDecoder = new ParityDecoder(PARITY_HISTORY);
+
+                    if (socketMode == Mode.WAITING) {
+                        socketMode = Mode.CONNECTED;
+                        writeControl(CONTROL_MODE_CONNECT); //Let the peer learn our capabilities.
+                    }
+                    break;
+                case CONTROL_MODE_DISCONNECT:
+                    if (socketMode == Mode.CONNECTED) socketMode = Mode.WAITING;
+                    break;
+                case CONTROL_MODE_PING:
+                    //Do nothing
+                    break;
+                default:
+                    break;
+            }
+        } else if (packetId == PACKET_PUSH) {
+            byte mode = body.get();
+            ChecksumType checksumType = compact ? this.checksum : ChecksumType.INTERNET;
+            long sequence, checksum;
+            int length;
+            if (compact) {
+                sequence = unwrap(body.getInt(), remoteSequence.getOffset());
+                checksum = checksumType.getLength() == 2 ? body.getShort() & 0xFFFFL : body.getInt() & 0xFFFFFFFFL;
+                length = body.remaining();
+            } else {
+                sequence = body.getLong();
+                checksum = body.getLong();
+                length = body.getInt();
+            }
+
+            if (sequence < 0) throw new IOException("Invalid sequence: " + sequence);
+            if (length <= 0 || length > ReliabilityPacket.MTU) throw new IOException("Packet length invalid.");
+            if (length > body.remaining()) throw new IOException("Transport read error: " +
+                    body.remaining() + " read, expected " + length + ".");
+
+            byte[] data = new byte[length];
+            body.get(data);
+
+            if (checksum != checksumType.calculate(data)) {
+                counters.checksumFailures.incrementAndGet();
+                throw new IOException("Invalid checksum: " + checksum);
+            }
+
+            if (receivePush(sequence, mode, checksum, data))
+                counters.pushesReceived.incrementAndGet();
+        } else if (packetId == PACKET_PARITY) {
+            if (parityDecoder == null) return; //The peer never announced parities.
+
+            long sequence = parityDecoder.recover(body, compact, checksum, remoteSequence.getOffset());
+            if (sequence < 0) return;
+
+            ParityGroup group = parityDecoder.getGroup();
+            byte[] data = Arrays.copyOf(group.getData(), group.getLength());
+            if (receivePush(sequence, (byte) (group.getDelivery() | PUSH_MODE_SEND), group.getChecksum(), data))
+                counters.recovered.incrementAndGet();
+        } else if (packetId == PACKET_ACK) {
+            long sequence = compact ? unwrap(body.getInt(), localSequence.getOffset()) : body.getLong();
+            if (hasWindow()) remoteWindow = body.getInt();
+
+            if (acknowledgeLocal(sequence)) {
+                //Now see what local packets can be forgotten about:
+                advanceLocal();
+                detectLoss();
+            }
+
+            pump(); //Even a re-acknowledgement may have opened the window.
+        } else if (packetId == PACKET_SACK) {
+            long cumulative = compact ? unwrap(body.getInt(), localSequence.getOffset()) : body.getLong();
+            if (hasWindow()) remoteWindow = body.getInt();
+            int words = body.get() & 0xFF;
+
+            //Everything below the cumulative sequence has been received.
+            long offset = localSequence.getOffset();
+            for (long sequence = offset; sequence < cumulative; sequence ++)
+                if (sequence - offset >= localSequence.getSize()) break;
+                else acknowledgeLocal(sequence);
+
+            //Everything flagged in the mask is held in the remote sequencer.
+            for (int word = 0; word < words; word ++) {
+                long mask = body.getLong();
+                while (mask != 0) {
+                    int bit = Long.numberOfTrailingZeros(mask);
+                    acknowledgeLocal(cumulative + 1 + (word * 64) + bit);
+                    mask &= mask - 1;
+                }
+            }
+
+            advanceLocal();
+            detectLoss();
+            pump();
+        } else if (packetId == PACKET_MESSAGE) {
+            Delivery delivery = Delivery.fromCode(body.get());
+            if (delivery == null || delivery.isReliable()) throw new IOException("Invalid delivery.");
+
+            int sequence = body.getInt();
+            ChecksumType checksumType = compact ? this.checksum : ChecksumType.INTERNET;
+            long checksum = checksumType.getLength() == 2 ? body.getShort() & 0xFFFFL : body.getInt() & 0xFFFFFFFFL;
+            if (checksum != checksumType.calculate(body)) {
+                counters.checksumFailures.incrementAndGet();
+                throw new IOException("Invalid checksum: " + checksum);
+            }
+
+            if (delivery == Delivery.UNRELIABLE_SEQUENCED) {
+                long unwrapped = unwrap(sequence, highestSequenced + 1);
+                if (unwrapped <= highestSequenced) return; //Superseded by a newer message.
+                highestSequenced = unwrapped;
+            }
+
+            byte[] data = new byte[body.remaining()];
+            body.get(data);
+
+            //Unreliable messages are dropped when the application falls behind.
+            if (messages.size() + orderedHeld < MESSAGE_QUEUE) messages.offer(ByteBuffer.wrap(data));
+        }
+    }
+
+    /**
+     * Receives a push whose checksum has been verified, whether it arrived or was rebuilt
+     * from a parity.
+     * @param sequence Remote sequence of the push.
+     * @param mode Push mode.
+     * @param checksum Push checksum.
+     * @param data Push data.
+     * @return true if the push was accepted, false if it was a duplicate or had no room.
+     * @throws IOException
+     */
+    private boolean receivePush(long sequence, byte mode, long checksum, byte[] data) throws IOException {
+        long offset = remoteSequence.getOffset();
+
+        //Pushes that cannot be accepted are dropped without acknowledgement, and retransmitted later.
+        if (sequence - offset >= remoteSequence.getSize()) return false;
+
+        if (offset > sequence || remoteSequence.has(sequence)) {
+            //Duplicate: our acknowledgement was likely lost, so repeat it right away.
+            counters.duplicates.incrementAndGet();
+            acknowledge(sequence, true);
+            return false;
+        }
+
+        byte delivery = (byte) (mode & PUSH_DELIVERY_MASK);
+        ReliabilityPacket readPacket;
+        if (delivery == 0) {
+            if (held + data.length > inputStream.remaining()) return false; //No room in the window.
+            held += data.length;
+
+            readPacket = new ReliabilityPacket(data);
+            readPacket.setAcknowledged(true);
+        } else if (delivery == PUSH_DELIVERY_STREAM) {
+            //Streams are ordered on their own, and drop anything past their credit.
+            receiveStream(data);
+            readPacket = DELIVERED;
+        } else if (delivery == PUSH_DELIVERY_CREDIT) {
+            credit(data);
+            readPacket = DELIVERED;
+        } else {
+            //Messages skip the stream; only their sequence is remembered, to spot duplicates.
+            deliver(delivery, data);
+            readPacket = DELIVERED;
+        }
 
-    public static final byte PUSH_MODE_SEND = 0x1;
-    public static final byte PUSH_MODE_RESEND = 0x2;
+        remoteSequence.put(sequence, readPacket);
+        if (parityDecoder != null) parityDecoder.add(sequence, delivery, checksum, data);
 
-    public static final byte CONTROL_MODE_CONNECT = 0x1;
-    public static final byte CONTROL_MODE_PING = 0x2;
-    public static final byte CONTROL_MODE_DISCONNECT = 0x3;
+        //Anything other than the next expected sequence reveals a hole to the sender.
+        boolean inOrder = sequence == remoteSequence.getOffset();
 
-    private DatagramSocket datagramSocket;
-    private Endpoint endpoint;
-    private Mode socketMode = Mode.WAITING;
+        //Now see what remote packets can be forwarded to the upper-level stream:
+        while (remoteSequence.ready()) ingest(remoteSequence.next());
 
-    private long remotePeerId = 0;
-    private long localPeerId = (new Random()).nextLong();
+        acknowledge(sequence, !inOrder); //Acknowledge the data
+        if (delivery == PUSH_DELIVERY_CREDIT) pump();
+        return true;
+    }
 
     /**
-     * We keep a remote sequencer to remember remote sequences.
+     * Raises the credit granted by the peer to a stream, or to reliable messages.
+     * @param data [Stream Id] [Limit Seq32].
+     * @throws IOException
      */
-    private Sequencer<ReliabilityPacket> remoteSequence = new Sequencer<ReliabilityPacket>(1024);
+    private void credit(byte[] data) throws IOException {
+        if (data.length != 6) throw new IOException("Invalid credit length: " + data.length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int id = buffer.getShort() & 0xFFFF;
+        int limit = buffer.getInt();
+
+        if (id == 0) {
+            long credit = messageCredit;
+            messageCredit = Math.max(credit, unwrap(limit, credit));
+        } else {
+            ReliabilityStream stream = streams.get(id);
+            if (stream != null) stream.credit(limit); //Closed already otherwise.
+        }
+    }
 
     /**
-     * We keep a local sequence to remember where we are in our send
-     * operations.
+     * Delivers a reliable message received from the peer to the application. The message
+     * queue always has room for it, as the peer pushes no more reliable messages than granted;
+     * reliable-ordered messages held ahead of their turn count against the same room.
+     * @param delivery Delivery code of the message.
+     * @param data Message, prefixed by its sequence if reliable-ordered.
+     * @throws IOException
      */
-    private Sequencer<ReliabilityPacket> localSequence = new Sequencer<ReliabilityPacket>(1024);
+    private void deliver(byte delivery, byte[] data) throws IOException {
+        if (delivery == Delivery.RELIABLE_UNORDERED.getCode()) {
+            synchronized (messages) {
+                messagesReceived ++;
+                messages.offer(ByteBuffer.wrap(data));
+            }
+            return;
+        } else if (delivery != Delivery.RELIABLE_ORDERED.getCode() || data.length <= 4) {
+            throw new IOException("Invalid delivery: " + delivery);
+        }
+
+        long offset = orderedMessages.getOffset();
+        long sequence = unwrap(ByteBuffer.wrap(data).getInt(), offset);
+        if (sequence < offset || sequence - offset >= orderedMessages.getSize())
+            throw new IOException("Message sequence out of window: " + sequence);
+
+        synchronized (messages) {
+            messagesReceived ++;
+            orderedMessages.put(sequence, ByteBuffer.wrap(data, 4, data.length - 4).slice());
+            orderedHeld ++;
+
+            while (orderedMessages.ready()) {
+                orderedHeld --;
+                messages.offer(orderedMessages.next());
+            }
+        }
+    }
 
     /**
-     * Keeps track of the last time (in milliseconds) any data was pushed, or
-     * the last time any ping was sent, whichever happened last will be the
-     * time represented by this field.
+     * Counts the data left in a set of buffers.
+     * @param buffers Buffers to count.
+     * @return Sum of the buffers' remaining bytes.
      */
-    private long lastSend;
-
-    //The following streams are for higher-level use:
-    private ByteBufferInputStream inputStream;
-    private ByteBufferOutputStream outputStream;
+    static int remaining(ByteBuffer[] buffers) {
+        int remaining = 0;
+        for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+        return remaining;
+    }
 
-    public ReliabilitySocket(DatagramSocket datagramSocket, Endpoint endpoint) {
-        this.datagramSocket = datagramSocket;
-        this.endpoint = endpoint;
+    /**
+     * Reads data from a set of buffers, in order, as if they were one.
+     * @param buffers Buffers to read from, holding at least len bytes.
+     * @param bytes Array to read into.
+     * @param off Offset to read to.
+     * @param len Amount of bytes to read.
+     */
+    static void get(ByteBuffer[] buffers, byte[] bytes, int off, int len) {
+        for (int i = 0; len > 0; i ++) {
+            int read = Math.min(len, buffers[i].remaining());
+            buffers[i].get(bytes, off, read);
+            off += read;
+            len -= read;
+        }
+    }
 
-        inputStream = new ByteBufferInputStream(1024);
-        outputStream = new ByteBufferOutputStream(this);
+    /**
+     * Recovers a full sequence from its low 32 bits, as the sequence closest to a base
+     * sequence known to both peers.
+     * @param sequence Low 32 bits of the sequence.
+     * @param base Base sequence, e.g. the head of the window the sequence falls in.
+     * @return Full sequence.
+     */
+    static long unwrap(int sequence, long base) {
+        return base + (sequence - (int) base);
     }
 
-    @Override
-    public InputStream getInputStream() throws IOException {
-        return inputStream;
+    /**
+     * Ingests a packet into the provided application-layer stream. The stream always has room
+     * for it, as it was reserved when the packet was received.
+     * @param packet Packet to ingest.
+     * @throws IOException
+     */
+    private void ingest(ReliabilityPacket packet) throws IOException {
+        if (packet == null || packet == DELIVERED) return;
+
+        byte[] data = packet.getData();
+        if (data.length <= 0) throw new IOException("Data length invalid.");
+
+        if (batching) ingested.add(data); //Left for endBatch().
+        else push(data);
     }
 
-    @Override
-    public OutputStream getOutputStream() throws IOException {
-        return outputStream;
+    private void push(byte[] data) throws IOException {
+        inputStream.push(data);
+        held -= data.length;
     }
 
-    @Override
-    public Endpoint getRemoteEndpoint() {
-        return endpoint;
+    /**
+     * Gets the amount of stream data the socket has room for, advertised to the peer.
+     * @return Receive window, in bytes.
+     */
+    public int getReceiveWindow() {
+        return Math.max(0, inputStream.remaining() - held);
     }
 
-    @Override
-    public boolean isConnected() {
-        return true;
+    /**
+     * Gets the amount of stream data the peer last advertised room for.
+     * @return Remote receive window, in bytes.
+     */
+    public int getRemoteWindow() {
+        return remoteWindow;
     }
 
-    @Override
-    public boolean isBlocking() {
-        return false;
+    private boolean hasWindow() {
+        return (remoteCapabilities & CAPABILITY_WINDOW) != 0;
     }
 
-    @Override
-    public void close() throws IOException {
-        inputStream.close();
+    /**
+     * Called when the application reads from the input stream, making sure the peer learns
+     * about the room made if it was told there was none.
+     */
+    private void opened() {
+        if (windowClosed && getReceiveWindow() >= ReliabilityPacket.MTU) wake(System.nanoTime());
+    }
 
-        outputStream.flush();
-        outputStream.close();
+    /**
+     * Finds if a push fits the window advertised by the peer: the receive window for the
+     * socket's own stream data, and the credit granted to streams and reliable messages.
+     * Called under sendLock.
+     * @param packet Packet to push.
+     * @return true if the packet may be pushed, false otherwise.
+     */
+    private boolean fitsWindow(ReliabilityPacket packet) {
+        byte delivery = packet.getDelivery();
+        if (delivery == PUSH_DELIVERY_STREAM) return packet.getStream().fitsCredit(packet);
+        else if (delivery == Delivery.RELIABLE_ORDERED.getCode() || delivery == Delivery.RELIABLE_UNORDERED.getCode())
+            return messagesPushed < messageCredit;
+        else if (delivery != 0 || !hasWindow()) return true;
+
+        int inFlight = windowInFlight.get();
+        return inFlight <= 0 || inFlight + packet.getData().length <= remoteWindow;
     }
 
     /**
-     * Finds if the stream is currently blocked, meaning all available egress sequence buckets have been filled.
-     * @return true if the socket will block on flush, false otherwise.
+     * Acknowledges a received remote sequence. Peers supporting selective acknowledgements
+     * have their acknowledgements batched into a single SACK, which is sent immediately when
+     * the push was out of order or a duplicate, or otherwise every ACK_FREQUENCY pushes.
+     * @param sequence Remote sequence received.
+     * @param immediate true if the acknowledgement should not be delayed.
+     * @throws IOException
      */
-    public boolean isBlocked() {
-        return localSequence.available() <= 0;
+    private void acknowledge(long sequence, boolean immediate) throws IOException {
+        synchronized (frameLock) {
+            if ((remoteCapabilities & CAPABILITY_SACK) == 0) {
+                writeAck(sequence);
+                return;
+            }
+
+            highestReceived = Math.max(highestReceived, sequence);
+            if (pendingAcks++ == 0) {
+                ackDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACK_DELAY);
+                wake(ackDeadline);
+            }
+
+            if (batching) ackNow |= immediate; //Left for endBatch().
+            else if (immediate || pendingAcks >= ACK_FREQUENCY) writeSack();
+        }
     }
 
-    @Override
-    public void flush(byte[] bytes) throws IOException {
-        if (bytes.length <= 0) throw new IOException("Cannot flush empty array");
+    /**
+     * Marks a local sequence as acknowledged by the remote peer.
+     * @param sequence Local sequence to acknowledge.
+     * @return true if the sequence was newly acknowledged, false otherwise.
+     */
+    private boolean acknowledgeLocal(long sequence) {
+        long offset = localSequence.getOffset();
+        if (sequence < offset || sequence - offset >= localSequence.getSize())
+            return false;
 
-        //Write the data, wrapping it around the MTU.
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-        for (;;) {
-            //Find the next transfer unit bytes to push.
-            int len = Math.min(inputStream.available(), ReliabilityPacket.MTU);
-            if (len <= 0) break; //Nothing left to send.
+        ReliabilityPacket ackedPacket = localSequence.get(sequence);
+        if (ackedPacket == null || ackedPacket.isAcknowledged())
+            return false;
+
+        ackedPacket.setAcknowledged(true);
+        if (ackedPacket.getSend() != null) ackedPacket.getSend().acknowledged();
+        if (sequence > offset) laterAcks ++;
+        highestAcknowledged = Math.max(highestAcknowledged, sequence);
 
-            //Wait for the socket to have data ready on the stream.
-            while (isBlocked());
+        if (ackedPacket.getTransmissions() <= 0) return true; //Never went out.
+        inFlight.decrementAndGet();
+        if (ackedPacket.getDelivery() == 0) windowInFlight.addAndGet(-ackedPacket.getData().length);
 
-            byte[] data = new byte[len];
-            inputStream.read(data);
+        //Pushes rebuilt from parities are never retransmitted, and so count as received.
+        lossRate += ((ackedPacket.getTransmissions() > 1 ? 1D : 0D) - lossRate) / LOSS_WINDOW;
 
-            //Put this data into the sequencer so it can be managed by the network thread.
-            long seq = localSequence.put(new ReliabilityPacket(data));
-            sendPush(seq, PUSH_MODE_SEND, data, data.length);
+        //Retransmitted packets are ambiguous about which transmission was acknowledged.
+        long time = System.nanoTime();
+        long sample = -1;
+        if (ackedPacket.getTransmissions() == 1) {
+            sample = time - ackedPacket.getSendTime();
+            roundTrip.sample(sample);
         }
+
+        congestionController.onAcknowledge(sequence, ackedPacket.getData().length, sample, time);
+        return true;
     }
 
     /**
-     * Implements the reliability algorithm for this socket. To keep the connection running,
-     * there should be a separate thread running elsewhere that continually sends control
-     * messages to ping this socket.
+     * Forgets about every acknowledged local packet at the head of the local sequencer.
      */
-    @Override
-    public void run() {
-        while (isConnected()) {
-            try {
-                Datagram packet = datagramSocket.receive();
+    private void advanceLocal() {
+        while (localSequence.ready()) {
+            if (localSequence.current().isAcknowledged()) {
+                localSequence.skip();
+                laterAcks = 0;
+            } else {
+                break;
+            }
+        }
+    }
 
-                ByteArrayInputStream packetInputStream = new ByteArrayInputStream(packet.getData());
-                DataInputStream dataInputStream = new DataInputStream(packetInputStream);
+    /**
+     * Retransmits holes without waiting for their retransmission timeout once enough later
+     * sequences have been acknowledged while the oldest local packet is still outstanding.
+     * Every unacknowledged packet below the highest acknowledged sequence is a hole, and is
+     * fast-retransmitted at most once; further losses are left to the timeout. Takes sendLock,
+     * like every other transmission, as it runs on the receiving thread.
+     * @throws IOException
+     */
+    private void detectLoss() throws IOException {
+        if (laterAcks < DUPLICATE_THRESHOLD) return;
+
+        sendLock.lock();
+        try {
+            ReliabilityPacket head = localSequence.current();
+            if (head == null || head.isAcknowledged()) return;
+
+            boolean lost = false;
+            long time = System.nanoTime();
+            long offset = localSequence.getOffset();
+            for (long sequence = offset; sequence < highestAcknowledged; sequence ++) {
+                ReliabilityPacket packet = localSequence.get(sequence);
+                if (packet == null || packet.isAcknowledged() || packet.isFastRetransmitted()) continue;
+                else if (packet.getTransmissions() <= 0) continue;
+
+                //Holes sent before the last loss belong to its episode, already signalled.
+                if (!lost && packet.getSendTime() > lossEpisode) {
+                    congestionController.onLoss(sequence, false, time);
+                    lossEpisode = time;
+                }
+                lost = true;
 
-                long peerId = dataInputStream.readLong();
-                if (socketMode == Mode.WAITING) this.remotePeerId = peerId;
-                else if (peerId == 0 || this.remotePeerId != peerId) continue;
-
-                byte packetId = dataInputStream.readByte();
-                if (packetId == PACKET_CONTROL) {
-                    byte controlMode = dataInputStream.readByte();
-                    switch (controlMode) {
-                        case CONTROL_MODE_CONNECT:
-                            if (socketMode == Mode.WAITING) socketMode = Mode.CONNECTED;
-                            break;
-                        case CONTROL_MODE_DISCONNECT:
-                            if (socketMode == Mode.CONNECTED) socketMode = Mode.WAITING;
-                            break;
-                        case CONTROL_MODE_PING:
-                            //Do nothing
-                            break;
-                        default:
-                            break;
-                    }
-                } else if (packetId == PACKET_PUSH) {
-                    byte mode = dataInputStream.readByte();
-                    long sequence = dataInputStream.readLong();
-                    if (sequence < 0) throw new IOException("Invalid sequence: " + sequence);
-                    long checksum = dataInputStream.readLong();
+                packet.setFastRetransmitted(true);
+                transmit(sequence, packet, PUSH_MODE_RESEND, time);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
-                    int length = dataInputStream.readInt();
-                    if (length <= 0 || length > ReliabilityPacket.MTU) throw new IOException("Packet length invalid.");
+    /**
+     * Updates the socket, sending delayed acknowledgements and coalesced frames, retransmitting
+     * every packet whose retransmission timeout has expired, and pinging the peer if the socket
+     * has been silent. Should be called considerably more often than the retransmission timeout,
+     * and more often than the flush delay; or left to a ReliabilityScheduler.
+     * @throws IOException
+     */
+    public void update() throws IOException {
+        update(System.nanoTime());
+    }
 
-                    byte[] data = new byte[length];
-                    int len = dataInputStream.read(data);
-                    if (len != length) throw new IOException("Transport read error: " + len +
-                            " read, expected " + length + " (unit: " + packet.getData().length + ").");
+    /**
+     * Updates the socket as of a given time; see update().
+     * @param time Current time (System.nanoTime()), e.g. read once for many sockets.
+     * @throws IOException
+     */
+    public void update(long time) throws IOException {
+        synchronized (frameLock) {
+            if (pendingAcks > 0 && time >= ackDeadline) writeSack();
+            else if (windowClosed && getReceiveWindow() >= ReliabilityPacket.MTU) {
+                //The application made room: tell the peer, which may be waiting for it.
+                if ((remoteCapabilities & CAPABILITY_SACK) != 0) writeSack();
+                else writeAck(remoteSequence.getOffset() - 1);
+            }
+            if (frameWriter.getCount() > 0 && time >= frameWriter.getDeadline()) flushFrames();
+        }
 
-                    if (checksum != RFC1071.calculateChecksum(data))
-                        throw new IOException("Invalid checksum: " + checksum);
+        if (time >= nextTimeout) retransmit(time);
 
-                    sendAck(sequence); //Acknowledge the data
+        if (time >= nextPace) {
+            nextPace = Long.MAX_VALUE;
+            pump();
+        }
 
-                    ReliabilityPacket readPacket = new ReliabilityPacket(data);
-                    readPacket.setAcknowledged(true);
-                    if (remoteSequence.getOffset() > sequence)
-                        continue;
-                    else if (remoteSequence.has(sequence))
-                        continue;
+        if (time >= parityEncoder.getDeadline()) {
+            sendLock.lock();
+            try {
+                synchronized (frameLock) {
+                    parityEncoder.flush(frameWriter, isCompact(), checksum);
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        if (time - lastSend >= TimeUnit.MILLISECONDS.toNanos(WINDOW_TIME)) {
+            this.lastSend = time;
+            writeControl(CONTROL_MODE_PING);
+        }
+
+        if (isIdle(time)) {
+            //The peer has gone silent.
+            socketMode = Mode.WAITING;
+
+            Runnable disconnectListener = this.disconnectListener;
+            if (disconnectListener != null) disconnectListener.run();
+        }
+
+        completeFrames();
+    }
 
-                    readPacket.setAcknowledged(true);
-                    remoteSequence.put(sequence, readPacket);
+    /**
+     * Finds if a connected peer has stayed silent for longer than the idle timeout.
+     * @param time Current time.
+     * @return true if the peer is connected but idle, false otherwise.
+     */
+    private boolean isIdle(long time) {
+        long idleTimeout = this.idleTimeout;
+        return idleTimeout > 0 && socketMode == Mode.CONNECTED &&
+                time - lastReceive >= TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
 
-                    //Now see what remote packets can be forwarded to the upper-level stream:
-                    while (remoteSequence.ready()) ingest(remoteSequence.next());
-                } else if (packetId == PACKET_ACK) {
-                    long sequence = dataInputStream.readLong();
-                    if (localSequence.getOffset() > sequence)
+    /**
+     * Retransmits every unacknowledged packet whose retransmission timeout has expired.
+     * @param time Current time.
+     * @throws IOException
+     */
+    private void retransmit(long time) throws IOException {
+        sendLock.lock();
+        try {
+            long next = Long.MAX_VALUE;
+            nextTimeout = Long.MAX_VALUE;
+
+            boolean lost = false;
+            long offset = localSequence.getOffset();
+            int count = localSequence.getCaret();
+            for (long sequence = offset; sequence < offset + count; sequence ++) {
+                ReliabilityPacket packet = localSequence.get(sequence);
+                if (packet == null || packet.isAcknowledged()) continue;
+                else if (packet.getTransmissions() <= 0) continue; //Still being pushed by flush().
+
+                if (packet.getTimeout() <= time) {
+                    long delay = pace(time);
+                    if (delay > 0) {
+                        next = Math.min(next, time + delay);
                         continue;
+                    }
 
-                    ReliabilityPacket ackedPacket = localSequence.get(sequence);
-                    if (ackedPacket == null)
-                        continue; //Potential re-acknowledgement.
-                    else if (ackedPacket.isAcknowledged())
-                        continue; //Potential re-acknowledgement.
-
-                    ackedPacket.setAcknowledged(true);
-
-                    //Now see what local packets can be forgotten about:
-                    while (localSequence.ready()) {
-                        if (localSequence.current().isAcknowledged()) {
-                            localSequence.skip();
-                        } else {
-                            break;
-                        }
+                    //A single timeout event per episode, as every expired packet belongs to the same one.
+                    if (!lost && packet.getSendTime() > lossEpisode) {
+                        congestionController.onLoss(sequence, true, time);
+                        lossEpisode = time;
                     }
+                    lost = true;
+
+                    transmit(sequence, packet, PUSH_MODE_RESEND, time);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+
+                next = Math.min(next, packet.getTimeout());
             }
+
+            schedule(next);
+        } finally {
+            sendLock.unlock();
         }
     }
 
     /**
-     * Ingests a packet into the provided application-layer stream.
-     * @param packet Packet to ingest.
+     * Transmits a packet held in the local sequencer and arms its retransmission timeout,
+     * backing the timeout off exponentially with every retransmission. Called under sendLock,
+     * so a packet's transmissions, timeout and flight accounting are never updated twice at once.
+     * @param sequence Local sequence of the packet.
+     * @param packet Packet to transmit.
+     * @param mode Push mode.
+     * @param time Current time.
      * @throws IOException
      */
-    private void ingest(ReliabilityPacket packet) throws IOException {
-        if (packet == null) return;
+    private void transmit(long sequence, ReliabilityPacket packet, byte mode, long time) throws IOException {
+        if (packet.getTransmissions() <= 0) {
+            inFlight.incrementAndGet();
+            if (packet.getDelivery() == 0) windowInFlight.addAndGet(packet.getData().length);
+            congestionController.onSend(sequence, packet.getData().length, time);
+            counters.pushesSent.incrementAndGet();
+        } else {
+            counters.retransmissions.incrementAndGet();
+        }
 
-        byte[] data = packet.getData();
-        if (data.length <= 0) throw new IOException("Data length invalid.");
+        if (pacing) pacer.consume();
+
+        long timeout = time + roundTrip.getTimeout(packet.getTransmissions() + 1);
+        packet.transmitted(time, timeout);
+        schedule(timeout);
 
-        ByteArrayInputStream copyStream = new ByteArrayInputStream(data);
-        while (copyStream.available() > 0) {
-            int copyReady = copyStream.available();
-            if (copyReady <= 0) break;
+        byte[] data = packet.getData();
+        long checksum = writePush(sequence, (byte) (mode | packet.getDelivery()), data, data.length);
+
+        if (mode == PUSH_MODE_SEND && forwardErrorCorrection && (remoteCapabilities & CAPABILITY_PARITY) != 0) {
+            long delay = Math.max(TimeUnit.MILLISECONDS.toNanos(PARITY_DELAY), roundTrip.getRoundTripTime() / 2);
+            boolean started;
+            synchronized (frameLock) {
+                started = parityEncoder.add(frameWriter, isCompact(), this.checksum,
+                        sequence, packet.getDelivery(), checksum, data, lossRate, time + delay);
+            }
+            if (started) wake(parityEncoder.getDeadline());
+        }
+    }
 
-            int inputReady = 0;
-            while (inputReady <= 0) inputReady = inputStream.remaining();
+    /**
+     * Finds how long to wait before the pacer allows the next transmission.
+     * @param time Current time.
+     * @return 0 if a packet may be transmitted now, otherwise the time to wait, in nanoseconds.
+     */
+    private long pace(long time) {
+        long roundTripTime = roundTrip.getRoundTripTime();
+        if (!pacing || roundTripTime <= 0) return 0L; //Nothing to derive a rate from yet.
 
-            int available = Math.min(inputReady, copyReady);
+        double rate = congestionController.getWindow() * PACING_GAIN / roundTripTime;
+        return pacer.getDelay(rate, Math.max(pacingBurst, rate * PACING_QUANTUM), time);
+    }
 
-            byte[] copyData = new byte[available];
-            copyStream.read(copyData, 0, available);
-            inputStream.push(copyData);
+    private void schedule(long timeout) {
+        if (timeout < nextTimeout) {
+            nextTimeout = timeout;
+            wake(timeout);
         }
     }
 
     /**
-     * Updates the socket.
-     * @throws IOException
+     * Tells the scheduler updating this socket, if any, about a new deadline.
+     * @param deadline Time (System.nanoTime()) by which update() has something to do.
      */
-    public void update() throws IOException {
-        long time = System.currentTimeMillis();
-        if (time - lastSend >= WINDOW_TIME) {
-            this.lastSend = System.currentTimeMillis();
-            if (!resend()) sendControl(CONTROL_MODE_PING);
+    private void wake(long deadline) {
+        ReliabilityScheduler.Timer timer = this.timer;
+        if (timer != null) timer.schedule(deadline);
+    }
+
+    /**
+     * Gets the earliest time update() has anything to do: a delayed acknowledgement or frame,
+     * a retransmission timeout, a parity or push held back, a ping, or the idle timeout.
+     * @return Next deadline (System.nanoTime()).
+     */
+    public long getNextDeadline() {
+        long deadline = Math.min(nextTimeout, nextPace);
+        deadline = Math.min(deadline, lastSend + TimeUnit.MILLISECONDS.toNanos(WINDOW_TIME));
+
+        long idleTimeout = this.idleTimeout;
+        if (idleTimeout > 0 && socketMode == Mode.CONNECTED)
+            deadline = Math.min(deadline, lastReceive + TimeUnit.MILLISECONDS.toNanos(idleTimeout));
+
+        synchronized (frameLock) {
+            if (pendingAcks > 0) deadline = Math.min(deadline, ackDeadline);
+            if (frameWriter.getCount() > 0) deadline = Math.min(deadline, frameWriter.getDeadline());
         }
+
+        deadline = Math.min(deadline, parityEncoder.getDeadline());
+
+        return deadline;
+    }
+
+    ReliabilityScheduler.Timer getTimer() {
+        return timer;
+    }
+
+    void setTimer(ReliabilityScheduler.Timer timer) {
+        this.timer = timer;
     }
 
     //
@@ -277,23 +1946,19 @@ public class ReliabilitySocket
     //
 
     public void sendPush(long sequence, byte mode, byte[] data, int length) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-
-        //PUSH header
-        dataOutputStream.writeLong(localPeerId);
-        dataOutputStream.writeByte(PACKET_PUSH);
-
-        //PUSH body
-        dataOutputStream.writeByte(mode);
-        dataOutputStream.writeLong(sequence);
-        dataOutputStream.writeLong(RFC1071.calculateChecksum(data));
-        dataOutputStream.writeInt(length);
-        dataOutputStream.write(data, 0, length);
+        writePush(sequence, mode, data, length);
+        completeFrames();
+    }
 
-        send(outputStream.toByteArray());
+    private long writePush(long sequence, byte mode, byte[] data, int length) throws IOException {
+        long checksum;
+        synchronized (frameLock) {
+            checksum = frameWriter.writePush(isCompact(), this.checksum, sequence, mode, data, length);
+            written();
+        }
 
-        this.lastSend = System.currentTimeMillis();
+        this.lastSend = System.nanoTime();
+        return checksum;
     }
 
     public boolean resend() throws IOException {
@@ -304,44 +1969,118 @@ public class ReliabilitySocket
         if (localSequence.getSize() <= 0)
             return false;
 
-        for (long offset = 0; offset < localSequence.getSize(); offset ++) {
-            ReliabilityPacket packet = localSequence.get(sequence + offset);
-            if (packet == null) break;
-            else if (!packet.isAcknowledged()) {
-                byte[] data = packet.getData();
-                sendPush(sequence + offset, PUSH_MODE_RESEND, data, data.length);
+        sendLock.lock();
+        try {
+            for (long offset = 0; offset < localSequence.getSize(); offset ++) {
+                ReliabilityPacket packet = localSequence.get(sequence + offset);
+                if (packet == null) break;
+                else if (!packet.isAcknowledged())
+                    transmit(sequence + offset, packet, PUSH_MODE_RESEND, System.nanoTime());
             }
+        } finally {
+            sendLock.unlock();
         }
 
+        completeFrames();
         return true;
     }
 
     public void sendAck(long sequence) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        writeAck(sequence);
+        completeFrames();
+    }
+
+    private void writeAck(long sequence) throws IOException {
+        synchronized (frameLock) {
+            frameWriter.writeAck(isCompact(), sequence, getWindow());
+            written();
+        }
+    }
+
+    /**
+     * Gets the receive window to advertise in an acknowledgement. Called under frameLock.
+     * @return Receive window, or -1 if the peer does not support it.
+     */
+    private int getWindow() {
+        if (!hasWindow()) return -1;
+
+        int window = getReceiveWindow();
+        windowClosed = window < ReliabilityPacket.MTU;
+        return window;
+    }
 
-        //ACK header
-        dataOutputStream.writeLong(localPeerId);
-        dataOutputStream.writeByte(PACKET_ACK);
+    /**
+     * Sends a selective acknowledgement covering every remote sequence currently held.
+     * @throws IOException
+     */
+    public void sendSack() throws IOException {
+        writeSack();
+        completeFrames();
+    }
 
-        //ACK body
-        dataOutputStream.writeLong(sequence);
+    private void writeSack() throws IOException {
+        synchronized (frameLock) {
+            frameWriter.writeSack(isCompact(), remoteSequence.getOffset(), getWindow(), remoteSequence, highestReceived);
+            written();
 
-        send(outputStream.toByteArray());
+            pendingAcks = 0;
+        }
     }
 
     public void sendControl(byte mode) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        writeControl(mode);
+        completeFrames();
+    }
+
+    private void writeControl(byte mode) throws IOException {
+        synchronized (frameLock) {
+            frameWriter.writeControl(isCompact(), mode, getLocalCapabilities(), LOCAL_VERSION);
+            written();
+        }
+    }
+
+    private void writeMessage(Delivery delivery, ByteBuffer message) throws IOException {
+        synchronized (frameLock) {
+            boolean compact = isCompact();
+            int sequence = delivery == Delivery.UNRELIABLE_SEQUENCED ? (int) sequencedSequence++ : 0;
+            frameWriter.writeMessage(compact, compact ? this.checksum : ChecksumType.INTERNET, delivery, sequence, message);
+            written();
+        }
+    }
+
+    /**
+     * Wakes the scheduler by the flush delay once a datagram starts holding coalesced frames;
+     * without a delay, they are flushed at the end of the operation. Called under frameLock.
+     */
+    private void written() {
+        if (frameWriter.getCount() == 1 && frameWriter.getFlushDelay() > 0) wake(frameWriter.getDeadline());
+    }
+
+    /**
+     * Sends every coalesced frame right away, along with any pending acknowledgement that
+     * still fits in the datagram.
+     * @throws IOException
+     */
+    public void flushFrames() throws IOException {
+        synchronized (frameLock) {
+            if (frameWriter.getCount() <= 0) return;
 
-        //CONTROL header
-        dataOutputStream.writeLong(localPeerId);
-        dataOutputStream.writeByte(PACKET_CONTROL);
+            boolean compact = isCompact();
+            int words = FrameWriter.getSackWords(remoteSequence.getOffset(), highestReceived);
+            if (pendingAcks > 0 && frameWriter.fits(compact, FrameWriter.getSackLength(compact, hasWindow(), words)))
+                writeSack();
 
-        //CONTROL body
-        dataOutputStream.writeByte(mode);
+            frameWriter.flush();
+        }
+    }
 
-        send(outputStream.toByteArray());
+    /**
+     * Sends coalesced frames at the end of an operation, unless a flush delay is set, in which
+     * case they are left for update().
+     * @throws IOException
+     */
+    private void completeFrames() throws IOException {
+        if (frameWriter.getFlushDelay() == 0) flushFrames();
     }
 
     public void initialize() throws IOException {
@@ -356,7 +2095,99 @@ public class ReliabilitySocket
         return remoteSequence.getOffset();
     }
 
+    public Mode getMode() {
+        return socketMode;
+    }
+
+    void setDisconnectListener(Runnable disconnectListener) {
+        this.disconnectListener = disconnectListener;
+    }
+
+    public long getRemotePeerId() {
+        return remotePeerId;
+    }
+
+    /**
+     * Gets the checksum negotiated with the peer, used by pushes with compact headers.
+     * @return Negotiated checksum.
+     */
+    public ChecksumType getChecksumType() {
+        return checksum;
+    }
+
+    /**
+     * Sets the strongest checksum offered to the peer at connect; the connection uses the
+     * strongest checksum both peers offer. Must be called before the connection is made.
+     * @param localChecksum Checksum to offer.
+     */
+    public void setChecksumType(ChecksumType localChecksum) {
+        if (!localChecksum.isAvailable())
+            throw new IllegalArgumentException("Checksum unavailable: " + localChecksum);
+
+        this.localChecksum = localChecksum;
+    }
+
+    private byte getLocalCapabilities() {
+        return (byte) (LOCAL_CAPABILITIES | localChecksum.getCapabilities());
+    }
+
+    /**
+     * Finds if the peer announced VERSION_COMPACT, in which case datagrams are exchanged
+     * with compact headers.
+     * @return true if compact headers are used, false otherwise.
+     */
+    public boolean isCompact() {
+        return remoteVersion >= VERSION_COMPACT;
+    }
+
+    public CongestionController getCongestionController() {
+        return congestionController;
+    }
+
+    /**
+     * Gets the amount of unacknowledged packets in flight.
+     * @return Packets in flight.
+     */
+    public int getPacketsInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gets the smoothed round-trip time to the peer.
+     * @return Round-trip time, in nanoseconds.
+     */
+    public long getRoundTripTime() {
+        return roundTrip.getRoundTripTime();
+    }
+
+    /**
+     * Gets the round-trip variance to the peer.
+     * @return Round-trip variance, in nanoseconds.
+     */
+    public long getRoundTripVariance() {
+        return roundTrip.getVariance();
+    }
+
+    /**
+     * Gets the current retransmission timeout.
+     * @return Retransmission timeout, in nanoseconds.
+     */
+    public long getRetransmissionTimeout() {
+        return roundTrip.getTimeout();
+    }
+
+    /**
+     * Takes a snapshot of the transport statistics of the connection. Statistics are kept
+     * without locking, and taking a snapshot does not stop the connection.
+     * @return Statistics.
+     */
+    public ReliabilityStatistics getStatistics() {
+        return new ReliabilityStatistics(this, counters, windowInFlight.get());
+    }
+
     public void send(byte[] bytes) throws IOException {
+        counters.datagramsSent.incrementAndGet();
+        counters.bytesSent.addAndGet(bytes.length);
         datagramSocket.send(new Datagram(bytes));
     }
 
@@ -0,0 +1,354 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+/**
+ * Snapshot of the transport statistics of one connection, or the sum of many. Totals count
+ * from the creation of each socket; the round-trip figures of a sum are the mean of its
+ * connections which have measured one, and its window figures the sum of theirs.
+ *
+ * Counters are read one at a time while the connections keep running, so a snapshot is not
+ * an atomic view: e.g. a push may be counted as sent, but its datagram not yet.
+ */
+public final class ReliabilityStatistics {
+    private final int connections;
+    private final int measured;
+
+    private final long roundTripTime;
+    private final long roundTripVariance;
+
+    private final long datagramsSent;
+    private final long bytesSent;
+    private final long datagramsReceived;
+    private final long bytesReceived;
+
+    private final long pushesSent;
+    private final long retransmissions;
+    private final long pushesReceived;
+    private final long duplicates;
+    private final long checksumFailures;
+    private final long recovered;
+
+    private final long packetsInFlight;
+    private final long congestionWindow;
+    private final long bytesInFlight;
+    private final long remoteWindow;
+    private final long receiveWindow;
+    private final long blockedTime;
+
+    /**
+     * Empty statistics, of no connection at all.
+     */
+    public static final ReliabilityStatistics EMPTY = new ReliabilityStatistics();
+
+    private ReliabilityStatistics() {
+        this.connections = 0;
+        this.measured = 0;
+        this.roundTripTime = 0L;
+        this.roundTripVariance = 0L;
+        this.datagramsSent = 0L;
+        this.bytesSent = 0L;
+        this.datagramsReceived = 0L;
+        this.bytesReceived = 0L;
+        this.pushesSent = 0L;
+        this.retransmissions = 0L;
+        this.pushesReceived = 0L;
+        this.duplicates = 0L;
+        this.checksumFailures = 0L;
+        this.recovered = 0L;
+        this.packetsInFlight = 0L;
+        this.congestionWindow = 0L;
+        this.bytesInFlight = 0L;
+        this.remoteWindow = 0L;
+        this.receiveWindow = 0L;
+        this.blockedTime = 0L;
+    }
+
+    /**
+     * Takes a snapshot of a socket.
+     * @param socket Socket.
+     * @param counters Counters of the socket.
+     * @param bytesInFlight Unacknowledged stream data sent to the peer, in bytes.
+     */
+    ReliabilityStatistics(ReliabilitySocket socket, ReliabilityCounters counters, long bytesInFlight) {
+        this.connections = 1;
+        this.roundTripTime = socket.getRoundTripTime();
+        this.roundTripVariance = socket.getRoundTripVariance();
+        this.measured = roundTripTime > 0 ? 1 : 0;
+
+        this.datagramsSent = counters.datagramsSent.get();
+        this.bytesSent = counters.bytesSent.get();
+        this.datagramsReceived = counters.datagramsReceived.get();
+        this.bytesReceived = counters.bytesReceived.get();
+        this.pushesSent = counters.pushesSent.get();
+        this.retransmissions = counters.retransmissions.get();
+        this.pushesReceived = counters.pushesReceived.get();
+        this.duplicates = counters.duplicates.get();
+        this.checksumFailures = counters.checksumFailures.get();
+        this.recovered = counters.recovered.get();
+        this.blockedTime = counters.blockedTime.get();
+
+        this.packetsInFlight = socket.getPacketsInFlight();
+        this.congestionWindow = socket.getCongestionController().getWindow();
+        this.bytesInFlight = bytesInFlight;
+        this.remoteWindow = socket.getRemoteWindow();
+        this.receiveWindow = socket.getReceiveWindow();
+    }
+
+    /**
+     * Copies the totals of other statistics, leaving out the round-trip and window figures.
+     * @param totals Statistics to copy the totals of.
+     */
+    private ReliabilityStatistics(ReliabilityStatistics totals) {
+        this.connections = totals.connections;
+        this.measured = 0;
+        this.roundTripTime = 0L;
+        this.roundTripVariance = 0L;
+        this.datagramsSent = totals.datagramsSent;
+        this.bytesSent = totals.bytesSent;
+        this.datagramsReceived = totals.datagramsReceived;
+        this.bytesReceived = totals.bytesReceived;
+        this.pushesSent = totals.pushesSent;
+        this.retransmissions = totals.retransmissions;
+        this.pushesReceived = totals.pushesReceived;
+        this.duplicates = totals.duplicates;
+        this.checksumFailures = totals.checksumFailures;
+        this.recovered = totals.recovered;
+        this.packetsInFlight = 0L;
+        this.congestionWindow = 0L;
+        this.bytesInFlight = 0L;
+        this.remoteWindow = 0L;
+        this.receiveWindow = 0L;
+        this.blockedTime = totals.blockedTime;
+    }
+
+    private ReliabilityStatistics(ReliabilityStatistics a, ReliabilityStatistics b) {
+        this.connections = a.connections + b.connections;
+        this.measured = a.measured + b.measured;
+
+        //Mean of every connection that has measured a round-trip time.
+        if (measured > 0) {
+            this.roundTripTime = (a.roundTripTime * a.measured + b.roundTripTime * b.measured) / measured;
+            this.roundTripVariance = (a.roundTripVariance * a.measured + b.roundTripVariance * b.measured) / measured;
+        } else {
+            this.roundTripTime = 0L;
+            this.roundTripVariance = 0L;
+        }
+
+        this.datagramsSent = a.datagramsSent + b.datagramsSent;
+        this.bytesSent = a.bytesSent + b.bytesSent;
+        this.datagramsReceived = a.datagramsReceived + b.datagramsReceived;
+        this.bytesReceived = a.bytesReceived + b.bytesReceived;
+        this.pushesSent = a.pushesSent + b.pushesSent;
+        this.retransmissions = a.retransmissions + b.retransmissions;
+        this.pushesReceived = a.pushesReceived + b.pushesReceived;
+        this.duplicates = a.duplicates + b.duplicates;
+        this.checksumFailures = a.checksumFailures + b.checksumFailures;
+        this.recovered = a.recovered + b.recovered;
+        this.packetsInFlight = a.packetsInFlight + b.packetsInFlight;
+        this.congestionWindow = a.congestionWindow + b.congestionWindow;
+        this.bytesInFlight = a.bytesInFlight + b.bytesInFlight;
+        this.remoteWindow = a.remoteWindow + b.remoteWindow;
+        this.receiveWindow = a.receiveWindow + b.receiveWindow;
+        this.blockedTime = a.blockedTime + b.blockedTime;
+    }
+
+    /**
+     * Sums these statistics with those of other connections.
+     * @param statistics Statistics to add.
+     * @return Sum of both.
+     */
+    public ReliabilityStatistics add(ReliabilityStatistics statistics) {
+        return new ReliabilityStatistics(this, statistics);
+    }
+
+    /**
+     * Keeps the totals of these statistics only, e.g. for a connection that is gone, whose
+     * round-trip time and windows no longer mean anything.
+     * @return Totals.
+     */
+    ReliabilityStatistics getTotals() {
+        return new ReliabilityStatistics(this);
+    }
+
+    /**
+     * Sums the statistics of many sockets.
+     * @param sockets Sockets.
+     * @return Sum of the statistics of every socket.
+     */
+    public static ReliabilityStatistics of(Iterable<? extends ReliabilitySocket> sockets) {
+        ReliabilityStatistics sum = EMPTY;
+        for (ReliabilitySocket socket : sockets)
+            sum = sum.add(socket.getStatistics());
+
+        return sum;
+    }
+
+    /**
+     * Gets the amount of connections summed.
+     * @return Connections.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Gets the smoothed round-trip time.
+     * @return Round-trip time, in nanoseconds, or 0 if none was measured.
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Gets the round-trip variance.
+     * @return Round-trip variance, in nanoseconds.
+     */
+    public long getRoundTripVariance() {
+        return roundTripVariance;
+    }
+
+    /**
+     * Gets the amount of datagrams sent, each holding one or more packets.
+     * @return Datagrams sent.
+     */
+    public long getDatagramsSent() {
+        return datagramsSent;
+    }
+
+    /**
+     * Gets the amount of bytes sent, headers included.
+     * @return Bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Gets the amount of datagrams received.
+     * @return Datagrams received.
+     */
+    public long getDatagramsReceived() {
+        return datagramsReceived;
+    }
+
+    /**
+     * Gets the amount of bytes received, headers included.
+     * @return Bytes received.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Gets the amount of pushes sent for the first time.
+     * @return Pushes sent.
+     */
+    public long getPushesSent() {
+        return pushesSent;
+    }
+
+    /**
+     * Gets the amount of pushes sent again, on timeout or on loss detected from acknowledgements.
+     * @return Retransmissions.
+     */
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * Gets the amount of pushes received, duplicates and rebuilt pushes excluded.
+     * @return Pushes received.
+     */
+    public long getPushesReceived() {
+        return pushesReceived;
+    }
+
+    /**
+     * Gets the amount of pushes received more than once.
+     * @return Duplicate pushes.
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Gets the amount of pushes and messages dropped for not matching their checksum.
+     * @return Checksum failures.
+     */
+    public long getChecksumFailures() {
+        return checksumFailures;
+    }
+
+    /**
+     * Gets the amount of lost pushes rebuilt from a parity, sparing a retransmission.
+     * @return Recovered pushes.
+     */
+    public long getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Gets the amount of unacknowledged packets in flight.
+     * @return Packets in flight.
+     */
+    public long getPacketsInFlight() {
+        return packetsInFlight;
+    }
+
+    /**
+     * Gets the congestion window.
+     * @return Congestion window, in packets.
+     */
+    public long getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    /**
+     * Gets the amount of unacknowledged stream data in flight, counted against the peer's
+     * receive window.
+     * @return Bytes in flight.
+     */
+    public long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    /**
+     * Gets the receive window last advertised by the peer.
+     * @return Remote window, in bytes.
+     */
+    public long getRemoteWindow() {
+        return remoteWindow;
+    }
+
+    /**
+     * Gets the receive window advertised to the peer.
+     * @return Receive window, in bytes.
+     */
+    public long getReceiveWindow() {
+        return receiveWindow;
+    }
+
+    /**
+     * Gets the time writers spent blocked waiting for their data to be pushed.
+     * @return Blocked time, in nanoseconds.
+     */
+    public long getBlockedTime() {
+        return blockedTime;
+    }
+
+    @Override
+    public String toString() {
+        return "connections=" + connections +
+                " rtt=" + roundTripTime + "ns rttvar=" + roundTripVariance + "ns" +
+                " sent=" + datagramsSent + "/" + bytesSent + "B" +
+                " received=" + datagramsReceived + "/" + bytesReceived + "B" +
+                " pushes=" + pushesSent + "/" + pushesReceived +
+                " retransmissions=" + retransmissions +
+                " duplicates=" + duplicates +
+                " checksumFailures=" + checksumFailures +
+                " recovered=" + recovered +
+                " inFlight=" + packetsInFlight + "/" + congestionWindow +
+                " window=" + bytesInFlight + "/" + remoteWindow + "B" +
+                " receiveWindow=" + receiveWindow + "B" +
+                " blocked=" + blockedTime + "ns";
+    }
+}
@@ -0,0 +1,335 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.manevolent.jp2p.buffer.BufferPool;
+import com.manevolent.jp2p.client.NetworkClient;
+import com.manevolent.jp2p.endpoint.Endpoint;
+import com.manevolent.jp2p.extensible.stream.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ordered byte stream multiplexed with other streams over a single ReliabilitySocket
+ * connection. Streams share the socket's sequencers, retransmissions and congestion window,
+ * but are ordered and buffered on their own, so data lost on one stream never holds back
+ * another. Opened with ReliabilitySocket.openStream(), and accepted on the other end with
+ * ReliabilitySocket.acceptStream().
+ *
+ * Stream data is pushed with PUSH_DELIVERY_STREAM, prefixed by [Stream Id] [Stream Seq32].
+ * A push without data closes the stream.
+ *
+ * Every stream is flow controlled on its own, so a stream the application does not read only
+ * stalls itself: the sender never pushes a stream sequence past the credit granted by the
+ * receiver, initially WINDOW packets, and the receiver grants more with PUSH_DELIVERY_CREDIT
+ * as the application reads. Pushes are thus always accepted by the connection, whether or not
+ * the application has read the stream.
+ */
+public class ReliabilityStream
+        extends NetworkClient
+        implements ByteBufferOutputStream.GatheringFlushCallback {
+
+    /**
+     * Size of the stream id and stream sequence prefixing the data of every stream push.
+     */
+    static final int HEADER = 6;
+
+    /**
+     * Maximum amount of packets buffered ahead of the application, and so the credit of a
+     * new stream. Credit is granted again once the application has read a quarter of it.
+     */
+    static final int WINDOW = 1024;
+
+    private final ReliabilitySocket socket;
+    private final int id;
+
+    /**
+     * Packets waiting to be pushed by the socket, and the stream sequence of the next one.
+     */
+    private final Queue<ReliabilityPacket> pending = new ConcurrentLinkedQueue<ReliabilityPacket>();
+    private long nextSequence = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Stream sequence up to which the peer allows pushes, raised by the socket's receiving
+     * thread, and the one last granted to the peer, guarded by the input stream.
+     */
+    private volatile long credit = WINDOW;
+    private long granted = WINDOW;
+
+    /**
+     * Packets received ahead of their turn, put and consumed by the socket's receiving thread,
+     * and the data of packets received in order, waiting for the application. Consumed counts
+     * the packets the application has finished reading.
+     */
+    private final SequenceBuffer<byte[]> received = new SingleProducerSequencer<byte[]>(WINDOW);
+    private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<ByteBuffer>();
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final StreamInputStream inputStream = new StreamInputStream();
+    private final ByteBufferOutputStream outputStream =
+            new ByteBufferOutputStream(BufferPool.getDefault(), 1024, this);
+
+    ReliabilityStream(ReliabilitySocket socket, int id) {
+        this.socket = socket;
+        this.id = id;
+    }
+
+    /**
+     * Gets the id of the stream, unique within its connection.
+     * @return Stream id.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public ReliabilitySocket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return outputStream;
+    }
+
+    @Override
+    public Endpoint getRemoteEndpoint() {
+        return socket.getRemoteEndpoint();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !closed && socket.isConnected();
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return true;
+    }
+
+    /**
+     * Closes the stream, telling the peer once everything written before has been received.
+     * Anything the peer still sends on the stream is discarded.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+
+        outputStream.close();
+
+        synchronized (this) {
+            if (closed) return;
+
+            enqueue(new ByteBuffer[0], null);
+            closed = true;
+        }
+
+        socket.release(this);
+        socket.pump();
+
+        //Anything the peer still sends is discarded, so it never has to wait for credit.
+        if (!inputStream.finished) socket.grant(id, consumed.get() + (1 << 30));
+    }
+
+    /**
+     * Writes data to the peer, blocking until all of it has been pushed.
+     * @param buffers Data to write, between the buffers' positions and limits, in order.
+     * @throws IOException
+     */
+    @Override
+    public void flush(ByteBuffer[] buffers) throws IOException {
+        if (ReliabilitySocket.remaining(buffers) <= 0) throw new IOException("Cannot flush empty buffers");
+
+        ReliabilityPacket last = enqueue(buffers, null);
+        socket.pump();
+        socket.awaitTransmission(last);
+    }
+
+    /**
+     * Writes data to the peer without blocking; see ReliabilitySocket.sendAsync().
+     * @param buffer Data to write, between the buffer's position and limit.
+     * @return Future completed on full acknowledgement.
+     * @throws IOException
+     */
+    public ListenableFuture<Void> sendAsync(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (length <= 0) return Futures.immediateFuture(null);
+
+        int payload = ReliabilityPacket.MTU - HEADER;
+        PendingSend send = new PendingSend((length + payload - 1) / payload);
+        enqueue(new ByteBuffer[] { buffer }, send);
+        socket.pump();
+
+        return send.getFuture();
+    }
+
+    /**
+     * Splits data into stream packets of at most one transfer unit, filled across the
+     * boundaries of the buffers, and queues them to be pushed. No data queues the packet
+     * closing the stream.
+     * @param buffers Data to queue, in order.
+     * @param send Asynchronous send the packets belong to, if any.
+     * @return The last packet queued.
+     * @throws IOException
+     */
+    private synchronized ReliabilityPacket enqueue(ByteBuffer[] buffers, PendingSend send) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+
+        int remaining = ReliabilitySocket.remaining(buffers);
+        ReliabilityPacket packet;
+        do {
+            int length = Math.min(remaining, ReliabilityPacket.MTU - HEADER);
+
+            ByteBuffer data = ByteBuffer.allocate(HEADER + length);
+            data.putShort((short) id);
+            data.putInt((int) nextSequence++);
+            ReliabilitySocket.get(buffers, data.array(), HEADER, length);
+            remaining -= length;
+
+            packet = new ReliabilityPacket(data.array(), send, this);
+            socket.queue(pending, packet);
+        } while (remaining > 0);
+
+        return packet;
+    }
+
+    Queue<ReliabilityPacket> getPending() {
+        return pending;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Finds if a packet of this stream is within the credit granted by the peer. Called under
+     * the socket's sendLock.
+     * @param packet Packet to push.
+     * @return true if the packet may be pushed, false if the peer has no room for it yet.
+     */
+    boolean fitsCredit(ReliabilityPacket packet) {
+        long credit = this.credit;
+        return ReliabilitySocket.unwrap(sequence(packet.getData()), credit) < credit;
+    }
+
+    /**
+     * Raises the credit granted by the peer. Called by the socket's receiving thread.
+     * @param limit Low 32 bits of the stream sequence up to which the peer allows pushes.
+     */
+    void credit(int limit) {
+        long credit = this.credit;
+        this.credit = Math.max(credit, ReliabilitySocket.unwrap(limit, credit));
+    }
+
+    /**
+     * Receives a stream packet, which should be within the credit granted to the peer. Called
+     * by the socket's receiving thread, which acknowledges the push whether or not it was kept.
+     * Packets past the credit are dropped: a peer ignoring its credit would otherwise have
+     * them retransmitted forever.
+     * @param data Packet data, including the stream header.
+     */
+    void receive(byte[] data) {
+        long offset = received.getOffset();
+        long sequence = ReliabilitySocket.unwrap(sequence(data), offset);
+        if (sequence < offset || closed) return; //Already received, or nobody is reading.
+        if (sequence >= consumed.get() + WINDOW) return; //Past the credit.
+
+        if (!received.has(sequence)) received.put(sequence, data);
+
+        while (received.ready()) {
+            byte[] next = received.next();
+            chunks.offer(ByteBuffer.wrap(next, HEADER, next.length - HEADER).slice());
+        }
+    }
+
+    /**
+     * Reads the stream sequence of a stream packet.
+     * @param data Packet data, including the stream header.
+     * @return Low 32 bits of the stream sequence.
+     */
+    private static int sequence(byte[] data) {
+        return ((data[2] & 0xFF) << 24) | ((data[3] & 0xFF) << 16) | ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+    }
+
+    private class StreamInputStream extends InputStream {
+        private ByteBuffer chunk;
+        private volatile boolean finished = false;
+
+        @Override
+        public int read() throws IOException {
+            synchronized (this) {
+                return next(true) ? chunk.get() & 0xFF : -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            synchronized (this) {
+                if (!next(true)) return -1;
+
+                int read = Math.min(len, chunk.remaining());
+                chunk.get(bytes, off, read);
+                return read;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (this) {
+                return next(false) ? chunk.remaining() : 0;
+            }
+        }
+
+        /**
+         * Makes sure a chunk with data is being read.
+         * @param block true to wait for a chunk.
+         * @return true if a chunk with data is being read, false at the end of the stream,
+         *         or if no chunk is there and block is false.
+         * @throws IOException
+         */
+        private boolean next(boolean block) throws IOException {
+            while (chunk == null || !chunk.hasRemaining()) {
+                if (chunk != null) {
+                    chunk = null;
+
+                    long limit = consumed.incrementAndGet() + WINDOW;
+                    if (limit - granted >= WINDOW / 4 && !closed) {
+                        granted = limit;
+                        socket.grant(id, limit);
+                    }
+                }
+
+                if (finished) return false;
+
+                try {
+                    chunk = block ? chunks.take() : chunks.poll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading");
+                }
+
+                if (chunk == null) return false;
+                else if (!chunk.hasRemaining()) finished = true; //The peer closed the stream.
+            }
+
+            return true;
+        }
+    }
+}
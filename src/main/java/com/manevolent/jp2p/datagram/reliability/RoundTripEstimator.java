@@ -0,0 +1,76 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a smoothed round-trip time and round-trip variance, and derives the retransmission
+ * timeout from them, as described by Jacobson/Karels (RFC 6298). All times are in nanoseconds.
+ */
+public class RoundTripEstimator {
+    public static final long INITIAL_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(1000);
+    public static final long MINIMUM_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+    public static final long MAXIMUM_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Maximum number of times the timeout of a single packet is doubled.
+     */
+    private static final int MAXIMUM_BACKOFF = 6;
+
+    private volatile long smoothed = 0;
+    private volatile long variance = 0;
+    private volatile long timeout = INITIAL_TIMEOUT;
+
+    /**
+     * Feeds a round-trip sample into the estimator. Samples should only be taken from packets
+     * that were transmitted once (Karn's algorithm).
+     * @param sample Measured round-trip time.
+     */
+    public synchronized void sample(long sample) {
+        if (sample < 0) return;
+
+        if (smoothed == 0) {
+            smoothed = sample;
+            variance = sample / 2;
+        } else {
+            variance = (3 * variance + Math.abs(smoothed - sample)) / 4;
+            smoothed = (7 * smoothed + sample) / 8;
+        }
+
+        timeout = Math.min(MAXIMUM_TIMEOUT, Math.max(MINIMUM_TIMEOUT, smoothed + 4 * variance));
+    }
+
+    /**
+     * Gets the smoothed round-trip time.
+     * @return Smoothed round-trip time, or 0 if no samples have been taken.
+     */
+    public long getRoundTripTime() {
+        return smoothed;
+    }
+
+    /**
+     * Gets the round-trip variance.
+     * @return Round-trip variance.
+     */
+    public long getVariance() {
+        return variance;
+    }
+
+    /**
+     * Gets the current retransmission timeout.
+     * @return Retransmission timeout.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Gets the retransmission timeout of a packet that has already been transmitted the
+     * specified amount of times, doubling the timeout for every retransmission.
+     * @param transmissions Times the packet was transmitted.
+     * @return Backed-off retransmission timeout.
+     */
+    public long getTimeout(int transmissions) {
+        int backoff = Math.min(MAXIMUM_BACKOFF, Math.max(0, transmissions - 1));
+        return Math.min(MAXIMUM_TIMEOUT, timeout << backoff);
+    }
+}
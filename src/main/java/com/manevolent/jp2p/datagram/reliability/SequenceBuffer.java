@@ -0,0 +1,89 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+/**
+ * Buffers sequenced elements until every element before them has been received, so they
+ * can be consumed in order.
+ * @param <T> Element type.
+ */
+public interface SequenceBuffer<T> {
+
+    /**
+     * Skips the specified amount of elements at the head of the buffer.
+     * @param offset Amount of elements to skip.
+     */
+    void skip(int offset);
+
+    /**
+     * Skips the element at the head of the buffer.
+     */
+    void skip();
+
+    /**
+     * Gets the sequence at the head of the buffer, or the amount of elements skipped so far.
+     * @return Head sequence.
+     */
+    long getOffset();
+
+    /**
+     * Gets the position (relative to the head) the next element put without a sequence goes to.
+     * @return Caret.
+     */
+    int getCaret();
+
+    /**
+     * Gets the maximum look-ahead of the buffer.
+     * @return Maximum look-ahead.
+     */
+    int getSize();
+
+    boolean has(long i);
+
+    /**
+     * Puts an element at the specified sequence.
+     * @param i Sequence.
+     * @param o Element.
+     * @return Element previously held at the sequence, if any.
+     */
+    T put(long i, T o);
+
+    /**
+     * Puts an element at the caret.
+     * @param o Element.
+     * @return Sequence the element was put at.
+     */
+    long put(T o);
+
+    /**
+     * Finds if the element at the head of the buffer has been received.
+     * @return true if the head element is available, false otherwise.
+     */
+    boolean ready();
+
+    /**
+     * Consumes the element at the head of the buffer.
+     * @return Head element.
+     */
+    T next();
+
+    /**
+     * Gets the element at the head of the buffer without consuming it.
+     * @return Head element.
+     */
+    T current();
+
+    T get(long i);
+
+    /**
+     * Gets the amount of elements that can be put at the caret before the buffer overflows.
+     * @return Available space.
+     */
+    int available();
+
+    /**
+     * Moves the head of the buffer to the specified sequence, keeping buffered elements at
+     * the same position relative to the head.
+     * @param o New offset.
+     */
+    void offset(long o);
+
+}
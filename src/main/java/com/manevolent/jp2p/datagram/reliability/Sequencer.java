@@ -1,12 +1,28 @@
 package com.manevolent.jp2p.datagram.reliability;
 
+/**
+ * A sequencer safe for any amount of concurrent producers and consumers, guarded by a lock.
+ * For exactly one producing and one consuming thread see SingleProducerSequencer.
+ * @param <T> Element type.
+ */
+public class Sequencer<T> implements SequenceBuffer<T> {
 
-public class Sequencer<T> {
+    /**
+     * Sequencer ring buffer, initialized in the constructor. Its length is the look-ahead
+     * rounded up to a power of two, so a sequence maps to its slot by (sequence & mask) and
+     * advancing the sequencer never moves any elements.
+     */
+    private final T[] buffer;
 
     /**
-     * Sequencer buffer, initialized in the constructor.
+     * Mask applied to a sequence to find its slot in the ring buffer.
      */
-    private volatile T[] buffer;
+    private final int mask;
+
+    /**
+     * Maximum look-ahead of the sequencer, which may be smaller than the ring buffer.
+     */
+    private final int length;
 
     /**
      * A numerical caret used to remember what offset (from 0) the last
@@ -25,7 +41,11 @@ public class Sequencer<T> {
      * @param length Maximum look-ahead for this sequencer.
      */
     public Sequencer(int length) {
-        buffer = allocate(length);
+        if (length <= 0 || length > (1 << 30)) throw new IllegalArgumentException("Invalid length: " + length);
+
+        this.length = length;
+        this.buffer = allocate(length == 1 ? 1 : Integer.highestOneBit(length - 1) << 1);
+        this.mask = buffer.length - 1;
         setOffset(0);
     }
 
@@ -33,21 +53,25 @@ public class Sequencer<T> {
         return (T[]) new Object[length];
     }
 
+    private int slot(long sequence) {
+        return (int) (sequence & mask);
+    }
+
     /**
-     * Shifts all elements in the sequencer left by the specified amount.
+     * Skips the specified amount of elements at the head of the sequencer.
      * @param offset Offset to shift by.
      */
     public void skip(int offset) {
         synchronized (buffer) {
-            if (offset > buffer.length)
+            if (offset > length)
                 throw new IllegalArgumentException("Cannot shift array by a larger size than it assumes.");
 
-            T[] newBuffer = allocate(buffer.length);
-            System.arraycopy(buffer, offset, newBuffer, 0, buffer.length - offset);
-            System.arraycopy(newBuffer, 0, buffer, 0, buffer.length);
+            long head = getOffset();
+            for (int i = 0; i < offset; i ++)
+                buffer[slot(head + i)] = null;
 
             setCaret(getCaret() - offset);
-            setOffset(getOffset() + offset);
+            setOffset(head + offset);
         }
     }
 
@@ -83,9 +107,7 @@ public class Sequencer<T> {
     }
 
     public int getSize() {
-        synchronized (buffer) {
-            return buffer.length;
-        }
+        return length;
     }
 
     public boolean has(long i) {
@@ -98,10 +120,11 @@ public class Sequencer<T> {
         synchronized (buffer) {
             long ri = i - offset;
             if (ri < 0) throw new IllegalArgumentException("Sequence too small: " + i + " < " + offset);
-            if (ri >= buffer.length) throw new IllegalArgumentException("Sequence too large: " + i);
+            if (ri >= length) throw new IllegalArgumentException("Sequence too large: " + i);
             if (o == null) throw new IllegalArgumentException("Cannot set value to null.");
-            T old = buffer[(int) ri];
-            buffer[(int) ri] = o;
+            int slot = slot(i);
+            T old = buffer[slot];
+            buffer[slot] = o;
             return old;
         }
     }
@@ -121,7 +144,7 @@ public class Sequencer<T> {
 
     public boolean ready() {
         synchronized (buffer) {
-            return buffer[0] != null;
+            return buffer[slot(offset)] != null;
         }
     }
 
@@ -135,7 +158,7 @@ public class Sequencer<T> {
 
     public T current() {
         synchronized (buffer) {
-            return buffer[0];
+            return buffer[slot(offset)];
         }
     }
 
@@ -143,10 +166,10 @@ public class Sequencer<T> {
         synchronized (buffer) {
             long ri = i - offset;
             if (ri < 0) return null;
-            if (ri >= buffer.length) throw new IllegalArgumentException("Sequence too large: " +
-                    ri + " >= " + buffer.length);
+            if (ri >= length) throw new IllegalArgumentException("Sequence too large: " +
+                    ri + " >= " + length);
 
-            return buffer[(int) ri];
+            return buffer[slot(i)];
         }
     }
 
@@ -156,9 +179,23 @@ public class Sequencer<T> {
         }
     }
 
+    /**
+     * Moves the head of the sequencer to the specified sequence, keeping buffered elements at
+     * the same position relative to the head.
+     * @param o New offset.
+     */
     public void offset(long o) {
         synchronized (buffer) {
+            T[] relative = allocate(length);
+            for (int i = 0; i < length; i ++) {
+                relative[i] = buffer[slot(offset + i)];
+                buffer[slot(offset + i)] = null;
+            }
+
             this.offset = o;
+
+            for (int i = 0; i < length; i ++)
+                buffer[slot(offset + i)] = relative[i];
         }
     }
 }
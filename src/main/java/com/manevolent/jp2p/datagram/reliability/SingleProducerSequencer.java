@@ -0,0 +1,157 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free sequencer for exactly one producing thread (put) and one consuming thread
+ * (ready, current, next, skip). Elements are published with ordered (release) stores and
+ * read with volatile (acquire) loads, and the head is only ever advanced by the consumer,
+ * so neither side takes a lock. Any thread may additionally call get, has and the getters.
+ *
+ * offset(long) is not thread-safe and must only be called while the sequencer is not in use.
+ * @param <T> Element type.
+ */
+public class SingleProducerSequencer<T> implements SequenceBuffer<T> {
+    private final AtomicReferenceArray<T> buffer;
+    private final int mask;
+    private final int length;
+
+    /**
+     * Sequence at the head of the sequencer, written by the consumer only.
+     */
+    private final AtomicLong head = new AtomicLong(0);
+
+    /**
+     * Sequence the next element put without a sequence goes to, written by the producer only.
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * Creates a new sequencer with the specified maximum buffer length.
+     * @param length Maximum look-ahead for this sequencer.
+     */
+    public SingleProducerSequencer(int length) {
+        if (length <= 0 || length > (1 << 30)) throw new IllegalArgumentException("Invalid length: " + length);
+
+        this.length = length;
+        this.buffer = new AtomicReferenceArray<T>(length == 1 ? 1 : Integer.highestOneBit(length - 1) << 1);
+        this.mask = buffer.length() - 1;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    @Override
+    public void skip(int offset) {
+        if (offset > length)
+            throw new IllegalArgumentException("Cannot shift array by a larger size than it assumes.");
+
+        long head = this.head.get();
+        for (int i = 0; i < offset; i ++)
+            buffer.lazySet(slot(head + i), null);
+
+        //The cleared slots are visible to the producer before the head that frees them.
+        this.head.lazySet(head + offset);
+    }
+
+    @Override
+    public void skip() {
+        skip(1);
+    }
+
+    @Override
+    public long getOffset() {
+        return head.get();
+    }
+
+    @Override
+    public int getCaret() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+
+    @Override
+    public int getSize() {
+        return length;
+    }
+
+    @Override
+    public boolean has(long i) {
+        return get(i) != null;
+    }
+
+    @Override
+    public T put(long i, T o) {
+        long ri = i - head.get();
+        if (ri < 0) throw new IllegalArgumentException("Sequence too small: " + i + " < " + head.get());
+        if (ri >= length) throw new IllegalArgumentException("Sequence too large: " + i);
+        if (o == null) throw new IllegalArgumentException("Cannot set value to null.");
+
+        int slot = slot(i);
+        T old = buffer.get(slot);
+        buffer.lazySet(slot, o);
+        return old;
+    }
+
+    @Override
+    public long put(T o) {
+        long sequence = Math.max(tail.get(), head.get());
+        if (sequence - head.get() >= length) throw new IllegalArgumentException("Buffer overflow: " + length);
+
+        put(sequence, o);
+        tail.lazySet(sequence + 1);
+        return sequence;
+    }
+
+    @Override
+    public boolean ready() {
+        return buffer.get(slot(head.get())) != null;
+    }
+
+    @Override
+    public T next() {
+        T i = current();
+        skip(1);
+        return i;
+    }
+
+    @Override
+    public T current() {
+        return buffer.get(slot(head.get()));
+    }
+
+    @Override
+    public T get(long i) {
+        long ri = i - head.get();
+        if (ri < 0) return null;
+        if (ri >= length) throw new IllegalArgumentException("Sequence too large: " +
+                ri + " >= " + length);
+
+        T element = buffer.get(slot(i));
+
+        //The slot may have been recycled for a later sequence if the head moved past i meanwhile.
+        return i < head.get() ? null : element;
+    }
+
+    @Override
+    public int available() {
+        return getSize() - getCaret();
+    }
+
+    @Override
+    public void offset(long o) {
+        long head = this.head.get();
+
+        @SuppressWarnings("unchecked")
+        T[] relative = (T[]) new Object[length];
+        for (int i = 0; i < length; i ++)
+            relative[i] = buffer.getAndSet(slot(head + i), null);
+
+        for (int i = 0; i < length; i ++)
+            buffer.set(slot(o + i), relative[i]);
+
+        this.tail.set(o + Math.max(0L, tail.get() - head));
+        this.head.set(o);
+    }
+}
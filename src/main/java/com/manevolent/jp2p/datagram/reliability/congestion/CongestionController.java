@@ -0,0 +1,42 @@
+package com.manevolent.jp2p.datagram.reliability.congestion;
+
+/**
+ * Decides how many packets a ReliabilitySocket may have in flight, driven by acknowledgement
+ * and loss events. All times are in nanoseconds (System.nanoTime()).
+ */
+public interface CongestionController {
+
+    /**
+     * Gets the congestion window.
+     * @return Amount of unacknowledged packets allowed in flight.
+     */
+    int getWindow();
+
+    /**
+     * Called when a packet is transmitted for the first time.
+     * @param sequence Local sequence of the packet.
+     * @param length Length of the packet's data.
+     * @param time Time of the transmission.
+     */
+    void onSend(long sequence, int length, long time);
+
+    /**
+     * Called when a packet is acknowledged by the peer.
+     * @param sequence Local sequence of the packet.
+     * @param length Length of the packet's data.
+     * @param roundTripTime Round-trip time measured from this packet, or -1 if the packet was
+     *                      retransmitted and provides no valid sample.
+     * @param time Time of the acknowledgement.
+     */
+    void onAcknowledge(long sequence, int length, long roundTripTime, long time);
+
+    /**
+     * Called when a packet is considered lost.
+     * @param sequence Local sequence of the packet.
+     * @param timeout true if the loss was detected by a retransmission timeout, false if it was
+     *                inferred from acknowledgements of later packets.
+     * @param time Time the loss was detected.
+     */
+    void onLoss(long sequence, boolean timeout, long time);
+
+}
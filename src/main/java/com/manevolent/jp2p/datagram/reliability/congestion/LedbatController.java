@@ -0,0 +1,92 @@
+package com.manevolent.jp2p.datagram.reliability.congestion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delay-based congestion control in the style of LEDBAT (RFC 6817): the window grows while the
+ * queuing delay, measured as the round-trip time above the lowest round-trip time seen, is
+ * below a target, and shrinks proportionally once the target is exceeded. Loss halves the
+ * window as in loss-based control.
+ */
+public class LedbatController implements CongestionController {
+    public static final long DEFAULT_TARGET = TimeUnit.MILLISECONDS.toNanos(25);
+    public static final int INITIAL_WINDOW = 10;
+    public static final int MINIMUM_WINDOW = 2;
+
+    /**
+     * Packets the window may grow by per round trip when the queue is empty.
+     */
+    private static final double GAIN = 1D;
+
+    /**
+     * Interval after which the base delay is forgotten, so route changes are picked up.
+     */
+    private static final long BASE_INTERVAL = TimeUnit.SECONDS.toNanos(60);
+
+    private final long target;
+    private final int maximumWindow;
+
+    private double window = INITIAL_WINDOW;
+    private long baseDelay = Long.MAX_VALUE;
+    private long baseTime = 0;
+    private long currentBaseDelay = Long.MAX_VALUE;
+
+    private long highestSent = -1;
+    private long recovery = -1;
+
+    public LedbatController(long target, int maximumWindow) {
+        if (target <= 0) throw new IllegalArgumentException("Target too small: " + target);
+        if (maximumWindow < MINIMUM_WINDOW) throw new IllegalArgumentException("Window too small: " + maximumWindow);
+        this.target = target;
+        this.maximumWindow = maximumWindow;
+    }
+
+    public LedbatController() {
+        this(DEFAULT_TARGET, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    /**
+     * Gets the lowest round-trip time observed, used as the zero-queue reference.
+     * @return Base delay, in nanoseconds, or Long.MAX_VALUE if no samples have been taken.
+     */
+    public synchronized long getBaseDelay() {
+        return Math.min(baseDelay, currentBaseDelay);
+    }
+
+    @Override
+    public synchronized void onSend(long sequence, int length, long time) {
+        highestSent = Math.max(highestSent, sequence);
+    }
+
+    @Override
+    public synchronized void onAcknowledge(long sequence, int length, long roundTripTime, long time) {
+        if (roundTripTime < 0) return; //No delay information.
+
+        //Keep the minimum of the current and the previous interval.
+        if (time - baseTime >= BASE_INTERVAL) {
+            baseDelay = currentBaseDelay;
+            currentBaseDelay = Long.MAX_VALUE;
+            baseTime = time;
+        }
+        currentBaseDelay = Math.min(currentBaseDelay, roundTripTime);
+
+        long queuingDelay = roundTripTime - getBaseDelay();
+        double offTarget = (double) (target - queuingDelay) / (double) target;
+
+        window += GAIN * offTarget / window;
+        window = Math.max(MINIMUM_WINDOW, Math.min(maximumWindow, window));
+    }
+
+    @Override
+    public synchronized void onLoss(long sequence, boolean timeout, long time) {
+        if (sequence < recovery && !timeout) return;
+
+        window = timeout ? MINIMUM_WINDOW : Math.max(MINIMUM_WINDOW, window / 2D);
+        recovery = highestSent + 1;
+    }
+}
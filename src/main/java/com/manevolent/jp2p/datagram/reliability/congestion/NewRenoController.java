@@ -0,0 +1,73 @@
+package com.manevolent.jp2p.datagram.reliability.congestion;
+
+/**
+ * Loss-based AIMD congestion control in the style of TCP NewReno: the window grows by one
+ * packet per acknowledgement in slow start and by one packet per window afterwards, and is
+ * halved at most once per window of data when loss is detected.
+ */
+public class NewRenoController implements CongestionController {
+    public static final int INITIAL_WINDOW = 10;
+    public static final int MINIMUM_WINDOW = 2;
+
+    private final int maximumWindow;
+
+    private volatile int window = INITIAL_WINDOW;
+    private int threshold = Integer.MAX_VALUE;
+    private int increase = 0;
+
+    private long highestSent = -1;
+
+    /**
+     * Sequence that must be acknowledged before another loss reduces the window.
+     */
+    private long recovery = -1;
+
+    public NewRenoController(int maximumWindow) {
+        if (maximumWindow < MINIMUM_WINDOW) throw new IllegalArgumentException("Window too small: " + maximumWindow);
+        this.maximumWindow = maximumWindow;
+    }
+
+    public NewRenoController() {
+        this(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Gets the slow start threshold.
+     * @return Slow start threshold, in packets.
+     */
+    public synchronized int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public synchronized void onSend(long sequence, int length, long time) {
+        highestSent = Math.max(highestSent, sequence);
+    }
+
+    @Override
+    public synchronized void onAcknowledge(long sequence, int length, long roundTripTime, long time) {
+        if (sequence < recovery) return; //Still recovering from the last loss.
+
+        if (window < threshold) {
+            window = Math.min(maximumWindow, window + 1);
+        } else if (++increase >= window) {
+            increase = 0;
+            window = Math.min(maximumWindow, window + 1);
+        }
+    }
+
+    @Override
+    public synchronized void onLoss(long sequence, boolean timeout, long time) {
+        if (sequence < recovery && !timeout) return; //Already reduced for this window.
+
+        threshold = Math.max(MINIMUM_WINDOW, window / 2);
+        window = timeout ? MINIMUM_WINDOW : threshold;
+        increase = 0;
+        recovery = highestSent + 1;
+    }
+}
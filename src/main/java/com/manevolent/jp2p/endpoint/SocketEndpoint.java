@@ -44,4 +44,9 @@ public abstract class SocketEndpoint extends Endpoint {
         else
             return false;
     }
+
+    @Override
+    public int hashCode() {
+        return 31 * (inetAddress != null ? inetAddress.hashCode() : 0) + port;
+    }
 }
@@ -0,0 +1,438 @@
+package com.manevolent.jp2p.extensible.socket;
+
+import com.manevolent.jp2p.NetworkProtocol;
+import com.manevolent.jp2p.datagram.Datagram;
+import com.manevolent.jp2p.datagram.DatagramHandler;
+import com.manevolent.jp2p.datagram.DatagramSocket;
+import com.manevolent.jp2p.endpoint.SocketEndpoint;
+import com.manevolent.jp2p.extensible.endpoint.IpEndpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Datagram socket connected to a peer in the same process through an emulated network path,
+ * for testing and benchmarking protocols under bad networks. Each socket shapes the datagrams
+ * it sends to its peer:
+ *
+ * - Latency, plus jitter drawn from a distribution. Datagrams otherwise stay in order.
+ * - Loss, independent (Bernoulli) or in bursts (Gilbert-Elliott).
+ * - Duplication, each copy delayed on its own.
+ * - Reordering, holding datagrams back so later ones overtake them.
+ * - A bandwidth cap, serializing datagrams onto the path, with an optional bottleneck queue
+ *   dropping datagrams once full.
+ *
+ * Every random draw comes from the socket's own seeded generator, in the order datagrams are
+ * sent, so a run sending the same datagrams is shaped the same way. Datagrams are copied when
+ * sent, and received with the endpoint of the sending socket.
+ */
+public class EmulatedDatagramSocket extends DatagramSocket implements Closeable {
+    private static final AtomicInteger nextPort = new AtomicInteger();
+
+    private final SocketEndpoint endpoint;
+    private final Random random;
+    private final DelayQueue<Delivery> queue = new DelayQueue<Delivery>();
+    private final AtomicLong nextOrder = new AtomicLong();
+
+    private volatile EmulatedDatagramSocket peer;
+    private volatile boolean closed = false;
+
+    private long latency = 0L;
+    private long jitter = 0L;
+    private Distribution distribution = Distribution.UNIFORM;
+
+    private double goodToBad = 0D, badToGood = 1D;
+    private double goodLoss = 0D, badLoss = 0D;
+    private boolean bad = false;
+
+    private double duplication = 0D;
+    private double reordering = 0D;
+    private long reorderDelay = 0L;
+
+    private long bandwidth = 0L;
+    private int queueCapacity = 0;
+
+    /**
+     * Time the path is done serializing every datagram sent so far, and the latest delivery
+     * scheduled, which in-order datagrams may not precede.
+     */
+    private long pathFree = 0L;
+    private long lastDelivery = 0L;
+
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong datagramsDropped = new AtomicLong();
+    private final AtomicLong datagramsDuplicated = new AtomicLong();
+
+    /**
+     * @param seed Seed of every random draw shaping datagrams sent by this socket.
+     */
+    public EmulatedDatagramSocket(long seed) {
+        this.random = new Random(seed);
+        this.endpoint = new IpEndpoint(NetworkProtocol.DATAGRAM, InetAddress.getLoopbackAddress(),
+                49152 + (nextPort.getAndIncrement() & 0x3FFF)); //Ephemeral port range.
+    }
+
+    /**
+     * Creates two sockets connected to each other, each shaping the datagrams it sends with
+     * a seed derived from the one given.
+     * @param seed Seed.
+     * @return Both sockets.
+     */
+    public static EmulatedDatagramSocket[] createPair(long seed) {
+        EmulatedDatagramSocket a = new EmulatedDatagramSocket(seed);
+        EmulatedDatagramSocket b = new EmulatedDatagramSocket(seed * 31 + 17);
+        a.connect(b);
+        b.connect(a);
+
+        return new EmulatedDatagramSocket[] { a, b };
+    }
+
+    /**
+     * Connects the socket to the peer it sends every datagram to.
+     * @param peer Peer.
+     */
+    public void connect(EmulatedDatagramSocket peer) {
+        this.peer = peer;
+    }
+
+    public EmulatedDatagramSocket getPeer() {
+        return peer;
+    }
+
+    /**
+     * Gets the endpoint the socket's datagrams are received from.
+     * @return Endpoint.
+     */
+    public SocketEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public Datagram receive() throws IOException {
+        Delivery delivery;
+        try {
+            delivery = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving");
+        }
+
+        return receive(delivery);
+    }
+
+    /**
+     * Receives a datagram, and every datagram already due behind it.
+     */
+    @Override
+    public int receive(DatagramHandler handler, int max) throws IOException {
+        Datagram datagram = receive();
+        int count = 0;
+        do {
+            handler.handle(datagram);
+            count ++;
+
+            Delivery next;
+            if (count >= max || (next = queue.poll()) == null) break;
+            datagram = receive(next);
+        } while (true);
+
+        return count;
+    }
+
+    private Datagram receive(Delivery delivery) throws IOException {
+        if (delivery.data == null) {
+            queue.offer(delivery); //Wake up any other receiver too.
+            throw new SocketException("Socket closed");
+        }
+
+        return new Datagram(delivery.endpoint, delivery.data);
+    }
+
+    @Override
+    public void send(Datagram bytes) throws IOException {
+        if (closed) throw new SocketException("Socket closed");
+
+        EmulatedDatagramSocket peer = this.peer;
+        if (peer == null) throw new IOException("Socket not connected");
+
+        ByteBuffer buffer = bytes.getBuffer();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+
+        datagramsSent.incrementAndGet();
+
+        long[] deliveries;
+        synchronized (this) {
+            deliveries = shape(data.length, System.nanoTime());
+        }
+
+        if (deliveries == null) {
+            datagramsDropped.incrementAndGet();
+            return;
+        }
+
+        if (deliveries.length > 1) datagramsDuplicated.incrementAndGet();
+        for (long time : deliveries)
+            peer.deliver(new Delivery(endpoint, data, time, peer.nextOrder.getAndIncrement()));
+    }
+
+    /**
+     * Decides the fate of a datagram sent now. Called under the socket's lock, which keeps the
+     * random draws in the order datagrams are sent.
+     * @param length Datagram length.
+     * @param time Current time.
+     * @return Delivery time of every copy of the datagram, or null if the datagram is lost.
+     */
+    private long[] shape(int length, long time) {
+        //Serialization onto the path, behind the datagrams still queued at the bottleneck.
+        long departure = time;
+        if (bandwidth > 0) {
+            long start = Math.max(time, pathFree);
+            long backlog = (start - time) * bandwidth / TimeUnit.SECONDS.toNanos(1);
+            if (queueCapacity > 0 && backlog + length > queueCapacity) return null; //Tail drop.
+
+            departure = start + (length * TimeUnit.SECONDS.toNanos(1)) / bandwidth;
+            pathFree = departure;
+        }
+
+        //Gilbert-Elliott: the path moves between a good and a bad state, each losing datagrams at its own rate.
+        bad = bad ? random.nextDouble() >= badToGood : random.nextDouble() < goodToBad;
+        if (random.nextDouble() < (bad ? badLoss : goodLoss)) return null;
+
+        int copies = random.nextDouble() < duplication ? 2 : 1;
+        long[] deliveries = new long[copies];
+        for (int i = 0; i < copies; i ++) {
+            long delivery = departure + latency + distribution.sample(random, jitter);
+            if (random.nextDouble() < reordering) {
+                delivery += reorderDelay; //Held back, letting later datagrams overtake it.
+            } else {
+                delivery = Math.max(delivery, lastDelivery);
+                lastDelivery = delivery;
+            }
+
+            deliveries[i] = delivery;
+        }
+
+        return deliveries;
+    }
+
+    private void deliver(Delivery delivery) {
+        if (!closed) queue.offer(delivery);
+    }
+
+    /**
+     * Sets the one-way latency of datagrams sent to the peer, and its jitter.
+     * @param latency Base latency.
+     * @param jitter Jitter, the spread of the distribution added to the base latency.
+     * @param distribution Distribution of the jitter.
+     * @param unit Unit of the latency and jitter.
+     */
+    public synchronized void setLatency(long latency, long jitter, Distribution distribution, TimeUnit unit) {
+        if (latency < 0 || jitter < 0) throw new IllegalArgumentException("Invalid latency");
+
+        this.latency = unit.toNanos(latency);
+        this.jitter = unit.toNanos(jitter);
+        this.distribution = distribution;
+    }
+
+    /**
+     * Sets the one-way latency of datagrams sent to the peer, without jitter.
+     * @param latency Latency.
+     * @param unit Unit of the latency.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        setLatency(latency, 0L, Distribution.UNIFORM, unit);
+    }
+
+    /**
+     * Loses datagrams independently of each other.
+     * @param loss Probability of losing a datagram, between 0 and 1.
+     */
+    public void setLoss(double loss) {
+        setLoss(0D, 1D, loss, 0D);
+    }
+
+    /**
+     * Loses datagrams in bursts, following the Gilbert-Elliott model: the path moves between
+     * a good and a bad state before every datagram, and loses it with the probability of the
+     * state it is in. The path spends goodToBad / (goodToBad + badToGood) of the time in the
+     * bad state, in bursts of 1 / badToGood datagrams on average.
+     * @param goodToBad Probability of moving from the good state to the bad state.
+     * @param badToGood Probability of moving from the bad state to the good state.
+     * @param goodLoss Probability of losing a datagram in the good state.
+     * @param badLoss Probability of losing a datagram in the bad state.
+     */
+    public synchronized void setLoss(double goodToBad, double badToGood, double goodLoss, double badLoss) {
+        checkProbability(goodToBad);
+        checkProbability(badToGood);
+        checkProbability(goodLoss);
+        checkProbability(badLoss);
+
+        this.goodToBad = goodToBad;
+        this.badToGood = badToGood;
+        this.goodLoss = goodLoss;
+        this.badLoss = badLoss;
+        this.bad = false;
+    }
+
+    /**
+     * Duplicates datagrams, each copy taking its own time to arrive.
+     * @param duplication Probability of duplicating a datagram, between 0 and 1.
+     */
+    public synchronized void setDuplication(double duplication) {
+        checkProbability(duplication);
+        this.duplication = duplication;
+    }
+
+    /**
+     * Reorders datagrams by holding some of them back for longer than the others.
+     * @param reordering Probability of holding a datagram back, between 0 and 1.
+     * @param delay Extra time a datagram is held back.
+     * @param unit Unit of the delay.
+     */
+    public synchronized void setReordering(double reordering, long delay, TimeUnit unit) {
+        checkProbability(reordering);
+        if (delay < 0) throw new IllegalArgumentException("Invalid delay: " + delay);
+
+        this.reordering = reordering;
+        this.reorderDelay = unit.toNanos(delay);
+    }
+
+    /**
+     * Caps the bandwidth of the path to the peer.
+     * @param bandwidth Bandwidth, in bytes per second, or 0 for no cap.
+     * @param queueCapacity Bytes the bottleneck queues before dropping datagrams, or 0 to never drop.
+     */
+    public synchronized void setBandwidth(long bandwidth, int queueCapacity) {
+        if (bandwidth < 0) throw new IllegalArgumentException("Invalid bandwidth: " + bandwidth);
+        if (queueCapacity < 0) throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+
+        this.bandwidth = bandwidth;
+        this.queueCapacity = queueCapacity;
+    }
+
+    private static void checkProbability(double probability) {
+        if (probability < 0D || probability > 1D)
+            throw new IllegalArgumentException("Invalid probability: " + probability);
+    }
+
+    /**
+     * Gets the amount of datagrams sent to the peer, including those lost.
+     * @return Datagrams sent.
+     */
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    /**
+     * Gets the amount of datagrams sent to the peer that were lost, or dropped by the bottleneck.
+     * @return Datagrams dropped.
+     */
+    public long getDatagramsDropped() {
+        return datagramsDropped.get();
+    }
+
+    /**
+     * Gets the amount of datagrams sent to the peer that were duplicated.
+     * @return Datagrams duplicated.
+     */
+    public long getDatagramsDuplicated() {
+        return datagramsDuplicated.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the socket. Datagrams still on their way to it are discarded, and receivers
+     * blocked on it throw.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+
+        closed = true;
+        queue.clear();
+        queue.offer(new Delivery(endpoint, null, Long.MIN_VALUE, -1L));
+    }
+
+    /**
+     * Distribution of the jitter added to the latency of every datagram, given its spread.
+     */
+    public enum Distribution {
+        /**
+         * Uniform between -jitter and +jitter.
+         */
+        UNIFORM {
+            @Override
+            long sample(Random random, long jitter) {
+                return jitter == 0 ? 0L : (long) ((random.nextDouble() * 2D - 1D) * jitter);
+            }
+        },
+
+        /**
+         * Normal, with a standard deviation of the jitter.
+         */
+        NORMAL {
+            @Override
+            long sample(Random random, long jitter) {
+                return jitter == 0 ? 0L : (long) (random.nextGaussian() * jitter);
+            }
+        },
+
+        /**
+         * Exponential, with a mean of the jitter: delays only, with a long tail.
+         */
+        EXPONENTIAL {
+            @Override
+            long sample(Random random, long jitter) {
+                return jitter == 0 ? 0L : (long) (-Math.log(1D - random.nextDouble()) * jitter);
+            }
+        };
+
+        abstract long sample(Random random, long jitter);
+    }
+
+    /**
+     * A datagram on its way to the socket. Deliveries due at the same time are received in the
+     * order they were sent.
+     */
+    private static final class Delivery implements Delayed {
+        private final SocketEndpoint endpoint;
+        private final byte[] data;
+        private final long time;
+        private final long order;
+
+        private Delivery(SocketEndpoint endpoint, byte[] data, long time, long order) {
+            this.endpoint = endpoint;
+            this.data = data;
+            this.time = time;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            if (time == Long.MIN_VALUE) return Long.MIN_VALUE;
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Delivery delivery = (Delivery) o;
+            if (time != delivery.time) return time < delivery.time ? -1 : 1;
+            return order < delivery.order ? -1 : (order == delivery.order ? 0 : 1);
+        }
+    }
+}
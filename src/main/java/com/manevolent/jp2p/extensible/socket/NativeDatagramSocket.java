@@ -1,39 +1,80 @@
 package com.manevolent.jp2p.extensible.socket;
 
+import com.manevolent.jp2p.NetworkProtocol;
+import com.manevolent.jp2p.buffer.BufferPool;
 import com.manevolent.jp2p.datagram.Datagram;
 import com.manevolent.jp2p.datagram.DatagramSocket;
+import com.manevolent.jp2p.endpoint.SocketEndpoint;
+import com.manevolent.jp2p.extensible.endpoint.IpEndpoint;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
+/**
+ * A DatagramSocket on top of a java.net.DatagramSocket. Datagrams are received into heap
+ * buffers drawn from a BufferPool; received datagrams should be released once processed to
+ * return their buffer to the pool.
+ */
 public class NativeDatagramSocket extends DatagramSocket {
     private final static Random r = new Random();
-    private byte[] buffer;
+    private final int capacity;
+    private final BufferPool pool;
     private java.net.DatagramSocket datagramSocket;
 
-    public NativeDatagramSocket(java.net.DatagramSocket datagramSocket, int capacity) {
+    public NativeDatagramSocket(java.net.DatagramSocket datagramSocket, int capacity, BufferPool pool) {
         this.datagramSocket = datagramSocket;
 
         if (capacity <= 0) throw new IllegalArgumentException("Capacity too small: " + capacity);
-        this.buffer = new byte[capacity];
+        if (pool.isDirect()) throw new IllegalArgumentException("Heap buffer pool required");
+        this.capacity = capacity;
+        this.pool = pool;
+    }
+
+    public NativeDatagramSocket(java.net.DatagramSocket datagramSocket, int capacity) {
+        this(datagramSocket, capacity, BufferPool.getDefault());
     }
 
     @Override
     public Datagram receive() throws IOException {
-        synchronized (this) {
-            DatagramPacket packet = new DatagramPacket(buffer, 0, buffer.length);
+        ByteBuffer buffer = pool.acquire(capacity);
+
+        DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.arrayOffset(), capacity);
+        try {
             datagramSocket.receive(packet);
-            return new Datagram(packet.getData());
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
         }
+
+        buffer.limit(packet.getLength());
+        return new Datagram(
+                new IpEndpoint(NetworkProtocol.DATAGRAM, packet.getAddress(), packet.getPort()),
+                buffer,
+                pool
+        );
     }
 
     @Override
     public void send(Datagram bytes) throws IOException {
-        byte[] data = bytes.getData();
-        if (data.length > buffer.length) throw new IOException("Data too long: " + data.length);
-        datagramSocket.send(new DatagramPacket(data, data.length));
+        int length = bytes.getLength();
+        if (length > capacity) throw new IOException("Data too long: " + length);
+
+        //Heap buffers are sent straight from their backing array.
+        ByteBuffer data = bytes.getBuffer();
+        DatagramPacket packet = data.hasArray() ?
+                new DatagramPacket(data.array(), data.arrayOffset() + data.position(), length) :
+                new DatagramPacket(bytes.getData(), length);
+
+        if (bytes.hasEndpoint()) {
+            SocketEndpoint endpoint = bytes.getEndpoint();
+            packet.setAddress(endpoint.getAddress());
+            packet.setPort(endpoint.getPort());
+        }
+
+        datagramSocket.send(packet);
     }
 
     public static final NativeDatagramSocket create(int capacity) throws SocketException {
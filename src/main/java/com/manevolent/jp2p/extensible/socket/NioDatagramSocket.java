@@ -0,0 +1,211 @@
+package com.manevolent.jp2p.extensible.socket;
+
+import com.manevolent.jp2p.NetworkProtocol;
+import com.manevolent.jp2p.buffer.BufferPool;
+import com.manevolent.jp2p.datagram.Datagram;
+import com.manevolent.jp2p.datagram.DatagramHandler;
+import com.manevolent.jp2p.datagram.DatagramSocket;
+import com.manevolent.jp2p.endpoint.SocketEndpoint;
+import com.manevolent.jp2p.extensible.endpoint.IpEndpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Random;
+
+/**
+ * A DatagramSocket on top of a DatagramChannel. Datagrams are received into direct buffers
+ * drawn from a BufferPool, so receiving does not allocate or copy into the heap; received
+ * datagrams must be released once processed to return their buffer to the pool.
+ *
+ * In non-blocking mode receive() returns null when no datagram is queued, and the channel
+ * can be registered with a Selector. receive(DatagramHandler, int) drains every datagram
+ * queued on a non-blocking channel in one pass, receiving each into the same buffer, and
+ * waits on a selector of its own while none is queued.
+ */
+public class NioDatagramSocket extends DatagramSocket implements Closeable, Datagram.ReleaseCallback {
+    private final static Random r = new Random();
+
+    private final DatagramChannel channel;
+    private final int capacity;
+    private final BufferPool pool;
+
+    /**
+     * Source endpoint of the last datagram received, reused while the source does not change.
+     */
+    private volatile SocketEndpoint lastEndpoint;
+
+    /**
+     * Buffer every datagram of a batch is received into, and the selector batches wait on;
+     * both only used by the receiving thread.
+     */
+    private ByteBuffer batchBuffer;
+    private volatile Selector selector;
+
+    public NioDatagramSocket(DatagramChannel channel, int capacity, BufferPool pool) {
+        this.channel = channel;
+
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity too small: " + capacity);
+        this.capacity = capacity;
+        this.pool = pool;
+    }
+
+    public NioDatagramSocket(DatagramChannel channel, int capacity) {
+        this(channel, capacity, BufferPool.getDirect());
+    }
+
+    @Override
+    public Datagram receive() throws IOException {
+        ByteBuffer buffer = pool.acquire(capacity);
+
+        SocketAddress address;
+        try {
+            address = channel.receive(buffer);
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+
+        if (address == null) { //Non-blocking, and nothing was queued.
+            release(buffer);
+            return null;
+        }
+
+        buffer.flip();
+        return new Datagram(getEndpoint(address), buffer, this);
+    }
+
+    @Override
+    public int receive(DatagramHandler handler, int max) throws IOException {
+        if (channel.isBlocking()) return super.receive(handler, max);
+
+        if (batchBuffer == null) batchBuffer = ByteBuffer.allocateDirect(capacity);
+
+        int count = 0;
+        boolean waited = false;
+        while (count < max) {
+            batchBuffer.clear();
+            SocketAddress address = channel.receive(batchBuffer);
+            if (address == null) {
+                //Wait for the first datagram of the batch only.
+                if (count > 0 || waited) break;
+
+                await();
+                waited = true;
+                continue;
+            }
+
+            batchBuffer.flip();
+            handler.handle(new Datagram(getEndpoint(address), batchBuffer, null));
+            count ++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Waits until the channel has a datagram queued, or the socket is closed.
+     * @throws IOException
+     */
+    private void await() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        try {
+            selector.select();
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public void send(Datagram bytes) throws IOException {
+        if (bytes.getLength() > capacity) throw new IOException("Data too long: " + bytes.getLength());
+
+        ByteBuffer buffer = bytes.getBuffer();
+        if (bytes.hasEndpoint()) {
+            SocketEndpoint endpoint = bytes.getEndpoint();
+            channel.send(buffer, new InetSocketAddress(endpoint.getAddress(), endpoint.getPort()));
+        } else
+            channel.write(buffer);
+    }
+
+    private SocketEndpoint getEndpoint(SocketAddress address) {
+        InetSocketAddress inetAddress = (InetSocketAddress) address;
+
+        SocketEndpoint endpoint = lastEndpoint;
+        if (endpoint == null ||
+                endpoint.getPort() != inetAddress.getPort() ||
+                !endpoint.getAddress().equals(inetAddress.getAddress()))
+            lastEndpoint = endpoint = new IpEndpoint(
+                    NetworkProtocol.DATAGRAM,
+                    inetAddress.getAddress(),
+                    inetAddress.getPort()
+            );
+
+        return endpoint;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public boolean isBlocking() {
+        return channel.isBlocking();
+    }
+
+    public void setBlocking(boolean blocking) throws IOException {
+        channel.configureBlocking(blocking);
+    }
+
+    /**
+     * Registers the underlying channel with a selector. The socket must be non-blocking.
+     * @param selector Selector to register with.
+     * @param ops Interest set, usually SelectionKey.OP_READ.
+     * @return Selection key, with this socket attached.
+     * @throws IOException
+     */
+    public SelectionKey register(Selector selector, int ops) throws IOException {
+        return channel.register(selector, ops, this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+
+        Selector selector = this.selector;
+        if (selector != null) selector.close(); //Wakes up a batch waiting on it.
+    }
+
+    public static final NioDatagramSocket create(int capacity) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(
+                r.nextInt(65535 -  49152) +  49152 //IANA "ephemeral port" region for private or dynamic ports.
+        ));
+
+        return new NioDatagramSocket(channel, capacity);
+    }
+}
@@ -1,18 +1,68 @@
 package com.manevolent.jp2p.extensible.stream;
 
-import java.io.ByteArrayInputStream;
+import com.manevolent.jp2p.buffer.BufferPool;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Input stream fed by pushing data into it, e.g. by the thread receiving the data from the
+ * network, and drained by the application. Data is held in a circular buffer: pushes and reads
+ * wrap around the end of the buffer instead of moving unread data, and neither allocates.
+ *
+ * Reads block until data is pushed, for at most the read timeout, and return whatever data is
+ * there; pushes block until the buffer has room for the data. Once the stream is closed, reads
+ * return what is left and then the end of the stream, and pushes are discarded. A buffer drawn
+ * from a BufferPool goes back to it once the stream is closed and drained.
+ */
 public class ByteBufferInputStream extends InputStream {
     private final ByteBuffer buf;
-    private volatile int length;
+    private final int capacity;
+    private final BufferPool pool;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pushed = lock.newCondition();
+    private final Condition drained = lock.newCondition();
 
+    /**
+     * Index of the next byte to read, and the amount of unread bytes following it, wrapping
+     * around the end of the buffer.
+     */
+    private int head = 0;
+    private volatile int length = 0;
+
+    private volatile boolean closed = false;
+    private volatile long readTimeout = 0L;
+
+    /**
+     * @param buf Buffer holding the data, from index 0 to its capacity.
+     */
     public ByteBufferInputStream(ByteBuffer buf) {
+        this(buf, buf.capacity(), null);
+    }
+
+    /**
+     * @param pool Pool to draw the buffer from, and to release it to once closed and drained.
+     * @param capacity Capacity of the stream, in bytes.
+     */
+    public ByteBufferInputStream(BufferPool pool, int capacity) {
+        this(pool.acquire(capacity), capacity, pool);
+    }
+
+    private ByteBufferInputStream(ByteBuffer buf, int capacity, BufferPool pool) {
         this.buf = buf;
-        this.length = 0;
+        this.capacity = capacity;
+        this.pool = pool;
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity too small: " + capacity);
+
+        buf.clear();
     }
 
     public ByteBufferInputStream(int capacity) {
@@ -25,106 +75,345 @@ public class ByteBufferInputStream extends InputStream {
 
     @Override
     public int available() {
-        synchronized (buf) {
-            return length;
-        }
+        return length;
     }
 
+    /**
+     * Gets the amount of bytes that can be pushed without blocking.
+     * @return Remaining room, in bytes.
+     */
     public int remaining() {
-        synchronized (buf) {
-            return buf.remaining() - available();
-        }
+        return capacity - length;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the longest time reads block waiting for data.
+     * @return Read timeout, in milliseconds, or 0 if reads block indefinitely.
+     */
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the longest time reads block waiting for data, after which they throw a
+     * SocketTimeoutException.
+     * @param readTimeout Read timeout, in milliseconds, or 0 to block indefinitely.
+     */
+    public void setReadTimeout(long readTimeout) {
+        if (readTimeout < 0) throw new IllegalArgumentException("Invalid timeout: " + readTimeout);
+        this.readTimeout = readTimeout;
     }
 
     @Override
     public int read() throws IOException {
-        synchronized (buf) {
-            if (length <= 0)
-                return -1;
+        lock.lock();
+        try {
+            if (!awaitData()) return -1;
 
-            length--;
-            return buf.get() & 0xFF;
+            int b = buf.get(head) & 0xFF;
+            consumed(1);
+            return b;
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public int read(byte[] bytes, int off, int len)
-            throws IOException {
-        int read = 0;
-
-        for (;;) {
-            int remaining = len - read;
-            if (remaining <= 0) break;
-
-            int copy = 0;
-            while (copy <= 0) copy = Math.min(length, remaining);
-
-            synchronized (buf) {
-                byte[] copyBytes = new byte[copy];
-                buf.clear();
-                buf.get(copyBytes);
-                System.arraycopy(copyBytes, 0, bytes, read, copy);
-
-                int after = length - copy;
-                if (after > 0) {
-                    byte[] afterBytes = new byte[after];
-                    buf.get(afterBytes);
-                    buf.clear();
-                    buf.put(afterBytes);
-                }
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > bytes.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
 
-                buf.clear();
+        lock.lock();
+        try {
+            if (!awaitData()) return -1;
 
-                length -= copy;
-                read += copy;
-            }
+            int read = Math.min(len, length);
+            int first = Math.min(read, capacity - head);
+            get(head, bytes, off, first);
+            if (first < read) get(0, bytes, off + first, read - first);
+
+            consumed(read);
+            return read;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /**
+     * Reads data into a buffer, blocking like read(byte[], int, int).
+     * @param target Buffer to read into, up to its remaining space.
+     * @return Amount of bytes read, or -1 at the end of the stream.
+     * @throws IOException
+     */
+    public int read(ByteBuffer target) throws IOException {
+        if (!target.hasRemaining()) return 0;
+
+        lock.lock();
+        try {
+            if (!awaitData()) return -1;
+
+            int read = Math.min(target.remaining(), length);
+            int first = Math.min(read, capacity - head);
+            get(head, target, first);
+            if (first < read) get(0, target, read - first);
 
-        return read;
+            consumed(read);
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+
+        lock.lock();
+        try {
+            int skipped = (int) Math.min(n, length);
+            consumed(skipped);
+            return skipped;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Pushes data onto the input stream to be read by the application.
+     * Pushes data onto the input stream to be read by the application, blocking until the
+     * stream has room for all of it.
      * @param bytes Bytes to push.
-     * @throws BufferOverflowException
+     * @throws IOException
      */
     public void push(byte[] bytes) throws BufferOverflowException, IOException {
-        ByteArrayInputStream copyStream = new ByteArrayInputStream(bytes);
+        push(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Pushes data onto the input stream to be read by the application, blocking until the
+     * stream has room for all of it.
+     * @param bytes Array holding the bytes to push.
+     * @param off Offset of the first byte to push.
+     * @param len Amount of bytes to push.
+     * @throws IOException
+     */
+    public void push(byte[] bytes, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > bytes.length - off) throw new IndexOutOfBoundsException();
 
-        for (;;) {
-            int write = copyStream.available();
-            if (write <= 0) break;
+        lock.lock();
+        try {
+            while (len > 0) {
+                int room = awaitRoom();
+                if (room <= 0) return; //Closed: nobody is reading anymore.
 
-            int remaining = 0;
-            while (remaining <= 0) remaining = buf.capacity() - length;
+                int write = Math.min(len, room);
+                int tail = (head + length) % capacity;
+                int first = Math.min(write, capacity - tail);
+                put(tail, bytes, off, first);
+                if (first < write) put(0, bytes, off + first, write - first);
 
-            synchronized (buf) {
-                int available = Math.min(write, remaining);
+                off += write;
+                len -= write;
+                produced(write);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pushes data onto the input stream to be read by the application, blocking until the
+     * stream has room for all of it.
+     * @param source Buffer holding the data to push, between its position and limit; emptied.
+     * @throws IOException
+     */
+    public void push(ByteBuffer source) throws IOException {
+        lock.lock();
+        try {
+            while (source.hasRemaining()) {
+                int room = awaitRoom();
+                if (room <= 0) { //Closed: nobody is reading anymore.
+                    source.position(source.limit());
+                    return;
+                }
 
-                byte[] remainingBytes = new byte[length];
-                buf.clear();
-                buf.get(remainingBytes);
+                int write = Math.min(source.remaining(), room);
+                int tail = (head + length) % capacity;
+                int first = Math.min(write, capacity - tail);
+                put(tail, source, first);
+                if (first < write) put(0, source, write - first);
 
-                //Clear the buffer and replace the remaining data in its place at position 0.
-                buf.clear();
-                buf.put(remainingBytes);
+                produced(write);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                byte[] chunk = new byte[available];
-                copyStream.read(chunk);
-                buf.put(chunk);
-                length += available;
+    /**
+     * Waits until the stream has room for more data to be pushed.
+     * @param timeout Maximum time to wait, in milliseconds, or 0 to wait indefinitely.
+     * @return Amount of bytes that can be pushed, 0 if the wait timed out.
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    public int awaitRemaining(long timeout) throws InterruptedIOException {
+        long wait = TimeUnit.MILLISECONDS.toNanos(timeout);
 
-                //Clear the position so all pushed data can be read.
-                buf.clear();
+        lock.lock();
+        try {
+            int remaining;
+            while ((remaining = remaining()) <= 0 && !closed) {
+                if (timeout == 0)
+                    drained.await();
+                else if ((wait = drained.awaitNanos(wait)) <= 0)
+                    return 0;
             }
+
+            return remaining;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for stream space");
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Reads every byte available without blocking.
+     * @return Bytes read.
+     * @throws IOException
+     */
     public byte[] flushToArray() throws IOException {
-        synchronized (buf) {
-            byte[] bytes = new byte[available()];
-            read(bytes);
+        lock.lock();
+        try {
+            byte[] bytes = new byte[length];
+            if (bytes.length > 0) read(bytes, 0, bytes.length);
             return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the stream, waking up every blocked read and push.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+
+            closed = true;
+            pushed.signalAll();
+            drained.signalAll();
+
+            if (length == 0) recycle();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits for data to read, for at most the read timeout. Called under the lock.
+     * @return true if there is data to read, false at the end of the stream.
+     * @throws IOException
+     */
+    private boolean awaitData() throws IOException {
+        long timeout = readTimeout;
+        long wait = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        try {
+            while (length <= 0) {
+                if (closed) return false;
+
+                if (timeout == 0)
+                    pushed.await();
+                else if ((wait = pushed.awaitNanos(wait)) <= 0)
+                    throw new SocketTimeoutException("Timed out waiting for data");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading");
         }
+
+        return true;
+    }
+
+    /**
+     * Waits for room to push data into. Called under the lock.
+     * @return Room, in bytes, or 0 if the stream is closed.
+     * @throws IOException
+     */
+    private int awaitRoom() throws IOException {
+        try {
+            while (length >= capacity && !closed) drained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pushing");
+        }
+
+        return closed ? 0 : capacity - length;
+    }
+
+    private void consumed(int count) {
+        if (count <= 0) return;
+
+        head = (head + count) % capacity;
+        length -= count;
+        if (length == 0) {
+            head = 0; //Keeps the next push contiguous.
+            if (closed) recycle();
+        }
+
+        drained.signalAll();
+    }
+
+    /**
+     * Releases the buffer to its pool, once the stream is closed and drained: nothing touches
+     * the buffer anymore from then on. Called under the lock.
+     */
+    private void recycle() {
+        if (pool != null) pool.release(buf);
+    }
+
+    private void produced(int count) {
+        length += count;
+        pushed.signalAll();
+    }
+
+    //
+    // Bulk transfers to and from the buffer at an index, moving the buffer's position only.
+    //
+
+    private void get(int index, byte[] bytes, int off, int len) {
+        buf.position(index);
+        buf.get(bytes, off, len);
+    }
+
+    private void get(int index, ByteBuffer target, int len) {
+        buf.limit(index + len).position(index);
+        target.put(buf);
+        buf.limit(capacity);
+    }
+
+    private void put(int index, byte[] bytes, int off, int len) {
+        buf.position(index);
+        buf.put(bytes, off, len);
+    }
+
+    private void put(int index, ByteBuffer source, int len) {
+        int limit = source.limit();
+        source.limit(source.position() + len);
+        buf.position(index);
+        buf.put(source);
+        source.limit(limit);
     }
 }
@@ -1,19 +1,65 @@
 package com.manevolent.jp2p.extensible.stream;
 
-import java.io.ByteArrayInputStream;
+import com.manevolent.jp2p.buffer.BufferPool;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
+/**
+ * Output stream buffering the data written into it until it is flushed, or the buffer fills
+ * up, and handing it to a flush callback. Writes are copied into the buffer once; writes too
+ * large for the buffer are not copied at all, but handed to the callback as they are, behind
+ * the data buffered before them. A buffer drawn from a BufferPool goes back to it once the
+ * stream is closed.
+ */
 public class ByteBufferOutputStream extends OutputStream {
-    private volatile ByteBuffer buf;
-    private volatile int length = 0;
+    private final Object lock = new Object();
 
-    private ByteBufferFlushCallback flushCallback;
+    private final ByteBuffer buf;
+    private final ByteBuffer view;
+    private final ByteBuffer[] buffered;
+
+    private final GatheringFlushCallback flushCallback;
+
+    private final BufferPool pool;
+    private boolean closed = false;
+
+    public ByteBufferOutputStream(ByteBuffer buf, GatheringFlushCallback flushCallback) {
+        this(buf, null, flushCallback);
+    }
+
+    /**
+     * @param pool Pool to draw the buffer from, and to release it to once closed.
+     * @param capacity Capacity of the buffer, in bytes, rounded up by the pool.
+     * @param flushCallback Callback flushed data is handed to.
+     */
+    public ByteBufferOutputStream(BufferPool pool, int capacity, GatheringFlushCallback flushCallback) {
+        this(pool.acquire(capacity), pool, flushCallback);
+    }
+
+    private ByteBufferOutputStream(ByteBuffer buf, BufferPool pool, GatheringFlushCallback flushCallback) {
+        if (buf.capacity() <= 0) throw new IllegalArgumentException("Capacity too small: " + buf.capacity());
 
-    public ByteBufferOutputStream(ByteBuffer buf, ByteBufferFlushCallback flushCallback) {
         this.buf = buf;
+        this.view = buf.asReadOnlyBuffer();
+        this.buffered = new ByteBuffer[] { view };
         this.flushCallback = flushCallback;
+        this.pool = pool;
+
+        buf.clear();
+    }
+
+    public ByteBufferOutputStream(GatheringFlushCallback flushCallback) {
+        this(ByteBuffer.allocate(1024), flushCallback);
+    }
+
+    public ByteBufferOutputStream(int capacity, GatheringFlushCallback flushCallback) {
+        this(ByteBuffer.allocate(capacity), flushCallback);
+    }
+
+    public ByteBufferOutputStream(ByteBuffer buf, ByteBufferFlushCallback flushCallback) {
+        this(buf, new ArrayFlushCallback(flushCallback));
     }
 
     public ByteBufferOutputStream(ByteBufferFlushCallback flushCallback) {
@@ -26,63 +72,128 @@ public class ByteBufferOutputStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        synchronized (buf) {
-            write(new byte[] { (byte) b }, 0, 1);
+        synchronized (lock) {
+            if (closed) throw new IOException("Stream closed");
+
+            if (!buf.hasRemaining()) flush();
+            buf.put((byte) b);
         }
     }
 
     @Override
     public void write(byte[] bytes, int off, int len) throws IOException {
-        synchronized (buf) {
-            byte[] cpy = new byte[len];
-            System.arraycopy(bytes, off, cpy, 0, len);
-
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(cpy);
-            inputStream.skip(off); //Skip to the offset.
-
-            for (;;) {
-                int write = inputStream.available();
-                if (write <= 0) break; //We have completed the write.
-
-                //Find the amount of bytes the buffer is ready to consume:
-                int available = Math.min(write, buf.remaining());
-                if (available <= 0) //We know write > 0, so our buffer's remaining size must be <= 0.
-                    flush();
-                else { //We are fine, for now, to write transparently to the buffer.
-                    byte[] chunk = new byte[available];
-                    inputStream.read(chunk);
-                    buf.put(chunk, 0, available);
-                    length += available;
-                }
+        if (off < 0 || len < 0 || len > bytes.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return;
+
+        synchronized (lock) {
+            if (closed) throw new IOException("Stream closed");
+
+            if (len <= buf.remaining()) {
+                buf.put(bytes, off, len);
+                return;
+            }
+
+            if (len < buf.capacity()) {
+                //Top the buffer up and flush it, leaving the rest for the emptied buffer.
+                int first = buf.remaining();
+                buf.put(bytes, off, first);
+                flush();
+                buf.put(bytes, off + first, len - first);
+                return;
+            }
+
+            //Too large to buffer: hand it over, gathered behind whatever is buffered.
+            ByteBuffer data = ByteBuffer.wrap(bytes, off, len).asReadOnlyBuffer();
+            try {
+                flushCallback.flush(buf.position() <= 0 ?
+                        new ByteBuffer[] { data } : new ByteBuffer[] { flip(), data });
+            } finally {
+                buf.clear();
             }
         }
     }
 
     @Override
     public void flush() throws IOException {
-        //Don't flush an empty buffer.
-        if (length <= 0) return;
-
-        byte[] flushBytes = new byte[length];
-
-        synchronized (buf) {
-            if (length > 0) {
-                //Clear the buffer, or reset its position to 0.
-                buf.clear();
-
-                //Fully empty the buffer into an array.
-                buf.get(flushBytes);
+        synchronized (lock) {
+            //Don't flush an empty buffer, nor a closed stream.
+            if (closed || buf.position() <= 0) return;
+
+            flip();
+            try {
+                flushCallback.flush(buffered);
+            } finally {
                 buf.clear();
+            }
+        }
+    }
 
-                //Reset the length of the stream to 0.
-                length = 0;
+    /**
+     * Closes the stream, flushing what is left in the buffer. Writes fail from then on.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+
+            try {
+                flush();
+            } finally {
+                closed = true;
+                if (pool != null) pool.release(buf);
             }
         }
+    }
+
+    /**
+     * Sets the read-only view of the buffer to the data buffered in it.
+     * @return View of the buffered data.
+     */
+    private ByteBuffer flip() {
+        view.limit(buf.position()).position(0);
+        return view;
+    }
 
-        flushCallback.flush(flushBytes);
+    /**
+     * Receives the data flushed by the stream as a gathered set of read-only buffers, holding
+     * the data between their positions and limits in order. The buffers are only valid until
+     * the callback returns, and are reused or written to by the stream afterwards: the callback
+     * must be done with the data, or have copied it, by then.
+     */
+    public interface GatheringFlushCallback {
+        public void flush(ByteBuffer[] buffers) throws IOException;
     }
 
+    /**
+     * Receives the data flushed by the stream as an array of its own, at the cost of a copy of
+     * every flush.
+     */
     public interface ByteBufferFlushCallback {
         public void flush(byte[] bytes) throws IOException;
     }
+
+    private static class ArrayFlushCallback implements GatheringFlushCallback {
+        private final ByteBufferFlushCallback flushCallback;
+
+        private ArrayFlushCallback(ByteBufferFlushCallback flushCallback) {
+            this.flushCallback = flushCallback;
+        }
+
+        @Override
+        public void flush(ByteBuffer[] buffers) throws IOException {
+            int length = 0;
+            for (ByteBuffer buffer : buffers) length += buffer.remaining();
+
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            for (ByteBuffer buffer : buffers) {
+                int remaining = buffer.remaining();
+                buffer.get(bytes, offset, remaining);
+                offset += remaining;
+            }
+
+            flushCallback.flush(bytes);
+        }
+    }
 }
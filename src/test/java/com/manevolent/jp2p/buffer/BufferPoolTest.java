@@ -0,0 +1,72 @@
+package com.manevolent.jp2p.buffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(false);
+
+        ByteBuffer buffer = pool.acquire(100);
+        Assert.assertEquals(128, buffer.capacity());
+        Assert.assertEquals(100, buffer.limit());
+
+        pool.release(buffer);
+        Assert.assertSame(buffer, pool.acquire(120));
+        Assert.assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    public void catchesDoubleRelease() {
+        BufferPool pool = new BufferPool(false);
+        pool.setDebug(true);
+
+        ByteBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+
+        try {
+            pool.release(buffer);
+            Assert.fail("Buffer released twice");
+        } catch (IllegalStateException expected) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void catchesForeignRelease() {
+        BufferPool pool = new BufferPool(false);
+        pool.setDebug(true);
+
+        try {
+            pool.release(ByteBuffer.allocate(128));
+            Assert.fail("Buffer not acquired from the pool released");
+        } catch (IllegalStateException expected) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void reportsLeaks() throws InterruptedException {
+        BufferPool pool = new BufferPool(false);
+        pool.setDebug(true);
+
+        pool.release(pool.acquire(100)); //Released, so never reported.
+        leak(pool);
+
+        //Leaks are reported by the next acquire or release once the buffer is collected.
+        for (int attempt = 0; attempt < 100 && pool.getLeaks() == 0; attempt ++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.release(pool.acquire(100));
+        }
+
+        Assert.assertEquals(1, pool.getLeaks());
+    }
+
+    private static void leak(BufferPool pool) {
+        pool.acquire(1000);
+    }
+}
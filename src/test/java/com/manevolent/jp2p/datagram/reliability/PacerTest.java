@@ -0,0 +1,74 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class PacerTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * A packet per millisecond.
+     */
+    private static final double RATE = 1D / TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void transmitsAtTheRate() {
+        Pacer pacer = new Pacer();
+
+        //A full bucket to begin with, then a packet per millisecond.
+        Assert.assertEquals(4 + 1000, transmit(pacer, 4D, 0L, SECOND));
+        Assert.assertEquals(1000, transmit(pacer, 4D, SECOND + 1, 2 * SECOND));
+    }
+
+    @Test
+    public void burstsNoMoreThanTheDepth() {
+        Pacer pacer = new Pacer();
+        transmit(pacer, 4D, 0L, SECOND);
+
+        //Idle for a second: the bucket only refills up to its depth.
+        long time = 2 * SECOND;
+        int burst = 0;
+        while (pacer.getDelay(RATE, 4D, time) == 0) {
+            pacer.consume();
+            burst ++;
+        }
+
+        Assert.assertEquals(4, burst);
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1), pacer.getDelay(RATE, 4D, time));
+    }
+
+    @Test
+    public void debtDelaysLaterTransmissions() {
+        Pacer pacer = new Pacer();
+        Assert.assertEquals(0L, pacer.getDelay(RATE, 1D, 0L));
+
+        //Transmissions that cannot wait leave the bucket in debt.
+        for (int i = 0; i < 3; i ++) pacer.consume();
+
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(3), pacer.getDelay(RATE, 1D, 0L));
+        Assert.assertEquals(0L, pacer.getDelay(RATE, 1D, TimeUnit.MILLISECONDS.toNanos(3)));
+    }
+
+    /**
+     * Transmits as often as the pacer allows over a period of time.
+     * @return Amount of packets transmitted.
+     */
+    private static int transmit(Pacer pacer, double depth, long start, long end) {
+        int count = 0;
+        long time = start;
+        while (time <= end) {
+            long delay = pacer.getDelay(RATE, depth, time);
+            if (delay > 0) {
+                time += delay;
+                continue;
+            }
+
+            pacer.consume();
+            count ++;
+        }
+
+        return count;
+    }
+}
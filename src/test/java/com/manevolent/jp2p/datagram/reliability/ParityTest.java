@@ -0,0 +1,153 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import com.manevolent.jp2p.datagram.Datagram;
+import com.manevolent.jp2p.extensible.socket.EmulatedDatagramSocket;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ParityTest {
+    private static final int GROUP = 8;
+    private static final int GROUPS = 16;
+    private static final int HISTORY = 256;
+
+    private EmulatedDatagramSocket[] path;
+    private FrameWriter writer;
+    private ParityEncoder encoder;
+    private ParityDecoder decoder;
+
+    private final Random random = new Random(1L);
+
+    @Before
+    public void setUp() {
+        path = EmulatedDatagramSocket.createPair(1L);
+        writer = new FrameWriter(path[0], new ReliabilityCounters(), 1L);
+        encoder = new ParityEncoder();
+        encoder.setBounds(GROUP, GROUP);
+        decoder = new ParityDecoder(HISTORY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        path[0].close();
+        path[1].close();
+    }
+
+    @Test
+    public void recoversOneLossPerGroup() throws IOException {
+        recoverOneLossPerGroup(false, ChecksumType.INTERNET);
+    }
+
+    @Test
+    public void recoversOneLossPerCompactGroup() throws IOException {
+        recoverOneLossPerGroup(true, ChecksumType.CRC_32);
+    }
+
+    private void recoverOneLossPerGroup(boolean compact, ChecksumType checksumType) throws IOException {
+        byte[][] pushes = new byte[GROUP * GROUPS][];
+        for (int sequence = 0; sequence < pushes.length; sequence ++) {
+            pushes[sequence] = push(sequence);
+            send(compact, checksumType, sequence, pushes[sequence]);
+
+            //Loses a different push of every group.
+            int group = sequence / GROUP;
+            if (sequence % GROUP != group % GROUP) receive(checksumType, sequence, pushes[sequence]);
+        }
+
+        for (int group = 0; group < GROUPS; group ++) {
+            long lost = group * GROUP + group % GROUP;
+            Assert.assertEquals(lost, decoder.recover(receiveParity(compact), compact, checksumType, 0L));
+
+            ParityGroup rebuilt = decoder.getGroup();
+            byte[] data = Arrays.copyOf(rebuilt.getData(), rebuilt.getLength());
+            Assert.assertArrayEquals(pushes[(int) lost], data);
+            Assert.assertEquals(checksumType.calculate(data), rebuilt.getChecksum());
+            Assert.assertEquals(ReliabilitySocket.PUSH_DELIVERY_STREAM, rebuilt.getDelivery());
+        }
+    }
+
+    @Test
+    public void ignoresGroupsMissingTwoPushes() throws IOException {
+        for (int sequence = 0; sequence < GROUP; sequence ++) {
+            byte[] data = push(sequence);
+            send(false, ChecksumType.INTERNET, sequence, data);
+            if (sequence != 2 && sequence != 5) receive(ChecksumType.INTERNET, sequence, data);
+        }
+
+        Assert.assertEquals(-1L, decoder.recover(receiveParity(false), false, ChecksumType.INTERNET, 0L));
+    }
+
+    @Test
+    public void ignoresGroupsAlreadyReceived() throws IOException {
+        for (int sequence = 0; sequence < GROUP; sequence ++) {
+            byte[] data = push(sequence);
+            send(false, ChecksumType.INTERNET, sequence, data);
+            if (sequence != 3) receive(ChecksumType.INTERNET, sequence, data);
+        }
+
+        //The lost push was retransmitted before the parity arrived.
+        Assert.assertEquals(-1L, decoder.recover(receiveParity(false), false, ChecksumType.INTERNET, GROUP));
+    }
+
+    @Test
+    public void sendsIncompleteGroupsOnFlush() throws IOException {
+        for (int sequence = 0; sequence < 3; sequence ++) {
+            byte[] data = push(sequence);
+            send(false, ChecksumType.INTERNET, sequence, data);
+            if (sequence != 1) receive(ChecksumType.INTERNET, sequence, data);
+        }
+
+        Assert.assertEquals(0L, encoder.getDeadline());
+        encoder.flush(writer, false, ChecksumType.INTERNET);
+        Assert.assertEquals(Long.MAX_VALUE, encoder.getDeadline());
+
+        Assert.assertEquals(1L, decoder.recover(receiveParity(false), false, ChecksumType.INTERNET, 0L));
+    }
+
+    /**
+     * Creates a push of a random length, so a rebuilt push also has to recover its length.
+     */
+    private byte[] push(int sequence) {
+        byte[] data = new byte[1 + random.nextInt(ReliabilityPacket.MTU)];
+        random.nextBytes(data);
+        data[0] = (byte) sequence;
+        return data;
+    }
+
+    private void send(boolean compact, ChecksumType checksumType, long sequence, byte[] data) throws IOException {
+        if (!compact) checksumType = ChecksumType.INTERNET;
+        encoder.add(writer, compact, checksumType, sequence, ReliabilitySocket.PUSH_DELIVERY_STREAM,
+                checksumType.calculate(data), data, 0D, 0L);
+    }
+
+    private void receive(ChecksumType checksumType, long sequence, byte[] data) {
+        decoder.add(sequence, ReliabilitySocket.PUSH_DELIVERY_STREAM, checksumType.calculate(data), data);
+    }
+
+    /**
+     * Receives the next parity sent, skipping its datagram header.
+     * @return Parity body.
+     */
+    private ByteBuffer receiveParity(boolean compact) throws IOException {
+        Datagram datagram = path[1].receive();
+        ByteBuffer buffer = datagram.getBuffer();
+
+        byte packetId;
+        if (compact) {
+            packetId = (byte) (buffer.get() & ~ReliabilitySocket.COMPACT_HEADER);
+            Assert.assertEquals(1, buffer.getInt());
+        } else {
+            Assert.assertEquals(1L, buffer.getLong());
+            packetId = buffer.get();
+        }
+
+        Assert.assertEquals(ReliabilitySocket.PACKET_PARITY, packetId);
+        return buffer;
+    }
+}
@@ -0,0 +1,167 @@
+package com.manevolent.jp2p.datagram.reliability;
+
+import com.manevolent.jp2p.extensible.socket.EmulatedDatagramSocket;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Transfers over an emulated network path between two sockets, each fed by a receive loop of
+ * its own and updated by a shared scheduler.
+ */
+public class ReliabilitySocketTest {
+    private static final int LENGTH = 512 * 1024;
+
+    private EmulatedDatagramSocket[] path;
+    private ReliabilitySocket sender, receiver;
+    private ReliabilityScheduler scheduler;
+
+    /**
+     * First error of a thread of the test, failing the test.
+     */
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    @Before
+    public void setUp() {
+        path = EmulatedDatagramSocket.createPair(7L);
+        for (EmulatedDatagramSocket socket : path)
+            socket.setLatency(10, 1, EmulatedDatagramSocket.Distribution.NORMAL, TimeUnit.MILLISECONDS);
+
+        sender = new ReliabilitySocket(path[0], path[1].getEndpoint());
+        receiver = new ReliabilitySocket(path[1], path[0].getEndpoint());
+
+        scheduler = new ReliabilityScheduler(1);
+        scheduler.register(sender);
+        scheduler.register(receiver);
+
+        receive(path[0], sender);
+        receive(path[1], receiver);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try {
+            sender.close();
+            receiver.close();
+        } finally {
+            scheduler.close();
+            path[0].close();
+            path[1].close();
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void repairsLossesSelectively() throws Exception {
+        connect();
+        path[0].setLoss(0.05D);
+        path[1].setLoss(0.05D);
+
+        transfer();
+
+        ReliabilityStatistics statistics = sender.getStatistics();
+        Assert.assertTrue("Nothing retransmitted", statistics.getRetransmissions() > 0);
+
+        //Only the pushes lost are retransmitted, not every push sent after them.
+        Assert.assertTrue("Too many retransmissions: " + statistics,
+                statistics.getRetransmissions() < statistics.getPushesSent() / 5);
+        Assert.assertEquals(0, receiver.getStatistics().getChecksumFailures());
+    }
+
+    @Test(timeout = 60000L)
+    public void repairsBurstLosses() throws Exception {
+        connect();
+
+        //About 5% of the datagrams lost, in bursts of about 4.
+        path[0].setLoss(0.0125D, 0.25D, 0D, 1D);
+
+        transfer();
+
+        Assert.assertTrue(sender.getStatistics().getRetransmissions() > 0);
+    }
+
+    @Test(timeout = 60000L)
+    public void recoversLossesFromParities() throws Exception {
+        sender.setForwardErrorCorrection(true);
+        connect();
+        path[0].setLoss(0.03D);
+
+        transfer();
+
+        Assert.assertTrue("Nothing recovered", receiver.getStatistics().getRecovered() > 0);
+    }
+
+    /**
+     * Connects the sockets before any loss is set up: connection requests are not retransmitted.
+     */
+    private void connect() throws IOException, InterruptedException {
+        sender.initialize();
+        while (sender.getMode() != ReliabilitySocket.Mode.CONNECTED ||
+                receiver.getMode() != ReliabilitySocket.Mode.CONNECTED)
+            Thread.sleep(1L);
+    }
+
+    /**
+     * Sends data from the sender to the receiver, checking every byte received.
+     */
+    private void transfer() throws Exception {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = sender.getOutputStream();
+                    byte[] bytes = new byte[4096];
+                    for (int offset = 0; offset < LENGTH; offset += bytes.length) {
+                        for (int i = 0; i < bytes.length; i ++) bytes[i] = (byte) ((offset + i) * 31);
+                        out.write(bytes);
+                    }
+                    out.flush();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        writer.start();
+
+        InputStream in = receiver.getInputStream();
+        byte[] bytes = new byte[8192];
+        int received = 0;
+        while (received < LENGTH) {
+            int read = in.read(bytes);
+            Assert.assertTrue("Stream ended", read >= 0);
+            for (int i = 0; i < read; i ++)
+                Assert.assertEquals("Byte " + (received + i), (byte) ((received + i) * 31), bytes[i]);
+            received += read;
+        }
+
+        writer.join();
+        if (failure.get() != null) throw failure.get();
+    }
+
+    /**
+     * Hands every datagram arriving on a path to a socket, until the path is closed.
+     */
+    private void receive(final EmulatedDatagramSocket path, final ReliabilitySocket socket) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!path.isClosed()) {
+                    try {
+                        socket.handle(path.receive());
+                    } catch (IOException e) {
+                        if (!path.isClosed()) failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        });
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
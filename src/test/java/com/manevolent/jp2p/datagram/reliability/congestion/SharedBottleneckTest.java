@@ -0,0 +1,173 @@
+package com.manevolent.jp2p.datagram.reliability.congestion;
+
+import com.manevolent.jp2p.datagram.Datagram;
+import com.manevolent.jp2p.datagram.reliability.ReliabilityScheduler;
+import com.manevolent.jp2p.datagram.reliability.ReliabilityServer;
+import com.manevolent.jp2p.datagram.reliability.ReliabilitySocket;
+import com.manevolent.jp2p.extensible.socket.EmulatedDatagramSocket;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Two connections, one controlled by NewReno and the other by LEDBAT, sending over the same
+ * emulated path to a single server. The path's bandwidth cap and bottleneck queue are shared:
+ * LEDBAT should yield most of the bandwidth once NewReno builds a queue.
+ */
+public class SharedBottleneckTest {
+    private static final int BANDWIDTH = 1024 * 1024;
+    private static final int QUEUE = 64 * 1024;
+
+    private EmulatedDatagramSocket[] path;
+    private ReliabilityScheduler scheduler;
+    private ReliabilityServer server;
+    private ReliabilitySocket reno, ledbat;
+
+    /**
+     * Clients reading from the path. A client waiting for its connection adopts the first
+     * peer it hears from, so it only starts reading once it is the only one waiting.
+     */
+    private final List<ReliabilitySocket> clients = new CopyOnWriteArrayList<ReliabilitySocket>();
+
+    private volatile boolean running = true;
+
+    /**
+     * First error of a thread of the test, failing the test.
+     */
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+    @Before
+    public void setUp() {
+        path = EmulatedDatagramSocket.createPair(3L);
+        path[0].setLatency(10, TimeUnit.MILLISECONDS);
+        path[1].setLatency(10, TimeUnit.MILLISECONDS);
+        path[0].setBandwidth(BANDWIDTH, QUEUE);
+
+        scheduler = new ReliabilityScheduler(1);
+        server = new ReliabilityServer(path[1], scheduler);
+        start(server);
+
+        reno = new ReliabilitySocket(path[0], path[1].getEndpoint(), new NewRenoController());
+        ledbat = new ReliabilitySocket(path[0], path[1].getEndpoint(), new LedbatController());
+        scheduler.register(reno);
+        scheduler.register(ledbat);
+
+        //Every client reads every datagram, ignoring those of other connections.
+        start(new Runnable() {
+            @Override
+            public void run() {
+                while (!path[0].isClosed()) {
+                    try {
+                        Datagram datagram = path[0].receive();
+                        for (ReliabilitySocket client : clients) client.handle(datagram);
+                    } catch (IOException e) {
+                        if (!path[0].isClosed()) failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        running = false;
+
+        try {
+            reno.abort(new IOException("Test over"));
+            ledbat.abort(new IOException("Test over"));
+            server.close();
+        } finally {
+            scheduler.close();
+            path[0].close();
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void ledbatYieldsToNewReno() throws Exception {
+        AtomicLong renoBytes = connect(reno);
+        AtomicLong ledbatBytes = connect(ledbat);
+
+        fill(reno);
+        fill(ledbat);
+
+        Thread.sleep(2000L); //Lets both windows settle.
+        long renoStart = renoBytes.get(), ledbatStart = ledbatBytes.get();
+        Thread.sleep(3000L);
+        long renoShare = renoBytes.get() - renoStart, ledbatShare = ledbatBytes.get() - ledbatStart;
+        if (failure.get() != null) throw failure.get();
+
+        String shares = "NewReno " + renoShare + "B, LEDBAT " + ledbatShare + "B";
+        Assert.assertTrue("Bottleneck left idle: " + shares, renoShare + ledbatShare > 3L * BANDWIDTH / 2);
+        Assert.assertTrue("LEDBAT did not yield: " + shares, ledbatShare * 4 < renoShare);
+    }
+
+    /**
+     * Connects a client to the server.
+     * @return Amount of bytes the server read from the client so far.
+     */
+    private AtomicLong connect(ReliabilitySocket client) throws IOException, InterruptedException {
+        clients.add(client);
+        client.initialize();
+
+        AtomicLong count = drain(server.accept());
+        while (client.getMode() != ReliabilitySocket.Mode.CONNECTED) Thread.sleep(1L);
+        return count;
+    }
+
+    /**
+     * Writes to a connection for as long as the test runs.
+     */
+    private void fill(final ReliabilitySocket socket) {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    byte[] bytes = new byte[4096];
+                    while (running) out.write(bytes);
+                } catch (IOException e) {
+                    if (running) failure.compareAndSet(null, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads from a connection for as long as the test runs.
+     * @return Amount of bytes read so far.
+     */
+    private AtomicLong drain(final ReliabilitySocket socket) {
+        final AtomicLong count = new AtomicLong();
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = socket.getInputStream();
+                    byte[] bytes = new byte[8192];
+                    int read;
+                    while ((read = in.read(bytes)) >= 0) count.addAndGet(read);
+                } catch (IOException e) {
+                    if (running) failure.compareAndSet(null, e);
+                }
+            }
+        });
+
+        return count;
+    }
+
+    private static void start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
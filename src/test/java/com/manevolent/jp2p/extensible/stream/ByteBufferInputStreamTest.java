@@ -0,0 +1,121 @@
+package com.manevolent.jp2p.extensible.stream;
+
+import com.manevolent.jp2p.buffer.BufferPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ByteBufferInputStreamTest {
+    private static final int CAPACITY = 16;
+
+    @Test
+    public void readsAcrossTheEnd() throws IOException {
+        ByteBufferInputStream stream = new ByteBufferInputStream(CAPACITY);
+        stream.push(bytes(0, 10));
+        Assert.assertArrayEquals(bytes(0, 6), read(stream, 6));
+
+        //Unread data stays where it is, so this push wraps around the end of the buffer.
+        stream.push(bytes(10, 12));
+        Assert.assertEquals(CAPACITY, stream.available());
+        Assert.assertEquals(0, stream.remaining());
+        Assert.assertArrayEquals(bytes(6, 16), read(stream, 16));
+    }
+
+    @Test
+    public void readsIntoBuffersAcrossTheEnd() throws IOException {
+        ByteBufferInputStream stream = new ByteBufferInputStream(CAPACITY);
+        stream.push(bytes(0, 14));
+        Assert.assertEquals(12, stream.skip(12));
+
+        stream.push(ByteBuffer.wrap(bytes(14, 10)));
+        Assert.assertEquals(12, stream.available());
+
+        ByteBuffer target = ByteBuffer.allocate(12);
+        Assert.assertEquals(12, stream.read(target));
+        Assert.assertArrayEquals(bytes(12, 12), target.array());
+    }
+
+    @Test
+    public void readsSingleBytesAcrossTheEnd() throws IOException {
+        ByteBufferInputStream stream = new ByteBufferInputStream(CAPACITY);
+        stream.push(bytes(0, 15));
+        Assert.assertEquals(14, stream.skip(14));
+
+        stream.push(bytes(15, 3));
+        for (int i = 14; i < 18; i ++)
+            Assert.assertEquals(i, stream.read());
+        Assert.assertEquals(0, stream.available());
+    }
+
+    @Test
+    public void skipsAcrossTheEnd() throws IOException {
+        ByteBufferInputStream stream = new ByteBufferInputStream(CAPACITY);
+        stream.push(bytes(0, 12));
+        Assert.assertEquals(10, stream.skip(10));
+
+        stream.push(bytes(12, 14));
+        Assert.assertEquals(10, stream.skip(10));
+        Assert.assertArrayEquals(bytes(20, 6), read(stream, 6));
+    }
+
+    @Test
+    public void pushesBlockUntilRead() throws Exception {
+        final ByteBufferInputStream stream = new ByteBufferInputStream(CAPACITY);
+        stream.push(bytes(0, 10));
+        Assert.assertArrayEquals(bytes(0, 4), read(stream, 4));
+
+        //More than the room left: waits for reads to make room, wrapping around the end.
+        Thread pusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stream.push(bytes(10, 40));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        pusher.start();
+
+        Assert.assertArrayEquals(bytes(4, 46), read(stream, 46));
+        pusher.join(1000L);
+        Assert.assertFalse(pusher.isAlive());
+    }
+
+    @Test
+    public void releasesPooledBufferOnceDrained() throws IOException {
+        BufferPool pool = new BufferPool(false);
+        pool.setDebug(true); //Catches a double release.
+
+        ByteBufferInputStream stream = new ByteBufferInputStream(pool, 64);
+        stream.push(bytes(0, 40));
+        stream.close();
+        Assert.assertArrayEquals(bytes(0, 40), read(stream, 40));
+        Assert.assertEquals(-1, stream.read());
+        stream.close();
+
+        //The buffer went back to the pool.
+        pool.acquire(64);
+        Assert.assertEquals(1, pool.getAllocations());
+    }
+
+    private static byte[] bytes(int first, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i ++) bytes[i] = (byte) (first + i);
+        return bytes;
+    }
+
+    private static byte[] read(ByteBufferInputStream stream, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = stream.read(bytes, read, length - read);
+            if (n < 0) Assert.fail("Stream ended after " + read + " bytes");
+            read += n;
+        }
+
+        return bytes;
+    }
+}